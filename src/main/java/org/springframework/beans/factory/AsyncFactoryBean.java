@@ -0,0 +1,26 @@
+package org.springframework.beans.factory;
+
+import java.util.concurrent.Future;
+
+/**
+ * 在后台生产对象的FactoryBean<br>
+ * getObject() 很慢的FactoryBean(预热缓存、打开连接池) 实现这个接口，把生产对象的工作放到自己的线程里，返回一个Future。
+ * 容器在预实例化单例时先启动所有的AsyncFactoryBean，其他的bean 继续创建，真正用到它生产的对象时才等待Future 完成。<br>
+ * 容器取对象时不再调用 getObject()；Future 失败时抛出对应bean name 的 BeanCreationException
+ * 
+ * @author yanbin
+ * 
+ * @param <T>
+ */
+public interface AsyncFactoryBean<T> extends FactoryBean<T> {
+
+	/**
+	 * 开始在后台生产对象，立即返回。单例的FactoryBean 在对象生产完之前只会被调用一次
+	 * 
+	 * @return 生产的对象的Future
+	 * @throws Exception
+	 *             没能开始生产对象
+	 */
+	Future<T> getObjectAsync() throws Exception;
+
+}
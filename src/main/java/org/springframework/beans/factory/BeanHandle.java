@@ -0,0 +1,32 @@
+package org.springframework.beans.factory;
+
+import org.springframework.beans.BeansException;
+
+/**
+ * 预先绑定好的bean 句柄<br>
+ * 名字、类型 和 作用域只在取得句柄时解析一次，之后每次 get() 不再走完整的 getBean：
+ * 单例直接读缓存的实例；原型用绑定好的bean definition 直接创建；自定义作用域直接交给注册的Scope。
+ * bean definition 或者 单例变化之后，句柄会自动重新绑定
+ * 
+ * @author yanbin
+ * 
+ * @param <T>
+ */
+public interface BeanHandle<T> {
+
+	/**
+	 * 返回句柄对应的bean 的规范名字
+	 * 
+	 * @return
+	 */
+	String getBeanName();
+
+	/**
+	 * 返回bean 的实例，和 getBean(name, requiredType) 的结果一样
+	 * 
+	 * @return
+	 * @throws BeansException
+	 */
+	T get() throws BeansException;
+
+}
@@ -3,7 +3,9 @@ package org.springframework.beans.factory.config;
 import java.beans.PropertyEditor;
 import java.security.AccessControlContext;
 
+import org.springframework.beans.BeansException;
 import org.springframework.beans.factory.BeanFactory;
+import org.springframework.beans.factory.BeanHandle;
 import org.springframework.beans.factory.HierarchicalBeanFactory;
 
 /**
@@ -273,6 +275,18 @@ public interface ConfigurableBeanFactory extends HierarchicalBeanFactory, Single
 	 */
 	void destroyScopedBean(String beanName);
 
+	/**
+	 * 返回预先绑定好名字、类型和作用域的bean 句柄，给需要反复动态取bean 的地方用
+	 * 
+	 * @param name
+	 * @param requiredType
+	 *            可以为null，表示不检查类型
+	 * @return
+	 * @throws BeansException
+	 *             bean 不存在 或者 bean definition 不合法
+	 */
+	<T> BeanHandle<T> getBeanHandle(String name, Class<T> requiredType) throws BeansException;
+
 	/**
 	 * 销毁单例的
 	 */
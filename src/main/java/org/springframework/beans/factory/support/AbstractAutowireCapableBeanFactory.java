@@ -19,8 +19,9 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.naming.spi.ObjectFactory;
 
@@ -69,6 +70,16 @@ public abstract class AbstractAutowireCapableBeanFactory extends AbstractBeanFac
 	/** 缓存被过滤的PropertyDescriptors ：bean Class -> PropertyDescriptor */
 	private final Map<Class, PropertyDescriptor[]> filteredPropertyDescriptorsCache = new ConcurrentHashMap<Class, PropertyDescriptor[]>();
 
+	/** 记录bean 的创建耗时，没有打开时为null */
+	private volatile BeanCreationTimer creationTimer;
+
+	/** 原型bean 的创建配方： bean name --> recipe */
+	private final ConcurrentMap<String, PrototypeCreationRecipe> prototypeCreationRecipes = new ConcurrentHashMap<String, PrototypeCreationRecipe>(
+			64);
+
+	/** 挑好的 InstantiationAwareBeanPostProcessor，绑定在后置处理器列表的版本上，列表变了之后重新挑 */
+	private volatile FilteredInstantiationAwareBeanPostProcessors filteredInstantiationAwareBeanPostProcessors;
+
 	public AbstractAutowireCapableBeanFactory() {
 		super();
 		ignoreDependencyInterface(BeanNameAware.class);
@@ -106,6 +117,30 @@ public abstract class AbstractAutowireCapableBeanFactory extends AbstractBeanFac
 		this.allowCircularReferences = allowCircularReferences;
 	}
 
+	/**
+	 * 设置是否记录每个bean 的创建耗时(包含时间、自身时间 和 各阶段的自身时间)。关闭时只多一次字段的读取
+	 * 
+	 * @param recordCreationTimings
+	 */
+	public void setRecordCreationTimings(boolean recordCreationTimings) {
+		this.creationTimer = (recordCreationTimings ? new BeanCreationTimer() : null);
+	}
+
+	public boolean isRecordCreationTimings() {
+		return (this.creationTimer != null);
+	}
+
+	/**
+	 * 返回bean 创建耗时的报告：关键路径 和 自身时间最长的前N 个bean。没有打开记录时返回null
+	 * 
+	 * @param topCount
+	 * @return
+	 */
+	public String getCreationTimingReport(int topCount) {
+		BeanCreationTimer timer = this.creationTimer;
+		return (timer != null ? timer.report(topCount) : null);
+	}
+
 	public void setAllowRawInjectionDespiteWrapping(boolean allowRawInjectionDespiteWrapping) {
 		this.allowRawInjectionDespiteWrapping = allowRawInjectionDespiteWrapping;
 	}
@@ -283,6 +318,27 @@ public abstract class AbstractAutowireCapableBeanFactory extends AbstractBeanFac
 		return result;
 	}
 
+	/**
+	 * 用创建配方里记下的后置处理器做初始化前的处理
+	 * 
+	 * @param existingBean
+	 * @param beanName
+	 * @param beanProcessors
+	 * @return
+	 * @throws BeansException
+	 */
+	private Object applyBeanPostProcessorsBeforeInitialization(Object existingBean, String beanName,
+			BeanPostProcessor[] beanProcessors) throws BeansException {
+		Object result = existingBean;
+		for (BeanPostProcessor beanProcessor : beanProcessors) {
+			result = beanProcessor.postProcessBeforeInitialization(result, beanName);
+			if (result == null) {
+				return result;
+			}
+		}
+		return result;
+	}
+
 	@Override
 	public Object applyBeanPostProcessorsAfterInitialization(Object existingBean, String beanName)
 			throws BeansException {
@@ -297,6 +353,27 @@ public abstract class AbstractAutowireCapableBeanFactory extends AbstractBeanFac
 		return result;
 	}
 
+	/**
+	 * 用创建配方里记下的后置处理器做初始化后的处理
+	 * 
+	 * @param existingBean
+	 * @param beanName
+	 * @param beanProcessors
+	 * @return
+	 * @throws BeansException
+	 */
+	private Object applyBeanPostProcessorsAfterInitialization(Object existingBean, String beanName,
+			BeanPostProcessor[] beanProcessors) throws BeansException {
+		Object result = existingBean;
+		for (BeanPostProcessor beanProcessor : beanProcessors) {
+			result = beanProcessor.postProcessAfterInitialization(result, beanName);
+			if (result == null) {
+				return result;
+			}
+		}
+		return result;
+	}
+
 	// ---------------------------------------------------------------------
 	// Implementation of relevant AbstractBeanFactory template methods
 	// 实现AbstractBeanFactory 有重大作用的模板方法
@@ -308,33 +385,135 @@ public abstract class AbstractAutowireCapableBeanFactory extends AbstractBeanFac
 		if (logger.isDebugEnabled()) {
 			logger.debug("Creating instance of bean '" + beanName + "'");
 		}
-		// 确保bean class是在这个点上解析的
-		resolveBeanClass(mbd, beanName);
-		// 准备方法的override
+		BeanCreationTimer timer = this.creationTimer;
+		if (timer != null) {
+			timer.beanCreationStarted(beanName);
+		}
 		try {
-			mbd.prepareMethodOverrides();
-		} catch (BeanDefinitionValidationException ex) {
-			throw new BeanDefinitionStoreException(mbd.getResourceDescription(), beanName,
-					"Validation of method overrides failed", ex);
+			// 原型bean 有可用的创建配方时，bean class 和 方法的override 都已经准备好了
+			if (args != null || getCreationRecipe(beanName, mbd) == null) {
+				// 确保bean class是在这个点上解析的
+				resolveBeanClass(mbd, beanName);
+				// 准备方法的override
+				try {
+					mbd.prepareMethodOverrides();
+				} catch (BeanDefinitionValidationException ex) {
+					throw new BeanDefinitionStoreException(mbd.getResourceDescription(), beanName,
+							"Validation of method overrides failed", ex);
+				}
+				if (args == null && mbd.isPrototype()) {
+					buildCreationRecipe(beanName, mbd);
+				}
+			}
+
+			// BeanPostProcessors 一个机会 返回一个代理实例 代替目标对象实例
+			try {
+				enterCreationPhase(BeanCreationTimer.Phase.POST_PROCESS);
+				Object bean = resolveBeforeInstantiation(beanName, mbd);
+				if (bean != null) {
+					return bean;
+				}
+			} catch (Throwable ex) {
+				throw new BeanCreationException(mbd.getResourceDescription(), beanName,
+						"BeanPostProcessor before instantiation of bean failed", ex);
+			}
+
+			// 创建实例
+			Object beanInstance = doCreateBean(beanName, mbd, args);
+			if (logger.isDebugEnabled()) {
+				logger.debug("Finished creating instance of bean '" + beanName + "'");
+			}
+			return beanInstance;
+		} finally {
+			if (timer != null) {
+				timer.beanCreationFinished(beanName);
+			}
 		}
+	}
 
-		// BeanPostProcessors 一个机会 返回一个代理实例 代替目标对象实例
-		try {
-			Object bean = resolveBeforeInstantiation(beanName, mbd);
-			if (bean != null) {
-				return bean;
+	/**
+	 * 返回原型bean 可用的创建配方：bean definition 被重新merge 过 或者 后置处理器变了时返回null
+	 * 
+	 * @param beanName
+	 * @param mbd
+	 * @return
+	 */
+	private PrototypeCreationRecipe getCreationRecipe(String beanName, AbstractBeanDefinition mbd) {
+		if (mbd == null || !mbd.isPrototype()) {
+			return null;
+		}
+		PrototypeCreationRecipe recipe = this.prototypeCreationRecipes.get(beanName);
+		return (recipe != null && recipe.isValidFor(mbd, getBeanPostProcessorGeneration()) ? recipe : null);
+	}
+
+	/**
+	 * 为原型bean 建立创建配方，bean class 和 方法的override 已经准备好了
+	 * 
+	 * @param beanName
+	 * @param mbd
+	 */
+	private void buildCreationRecipe(String beanName, RootBeanDefinition mbd) {
+		// 先取版本再挑后置处理器，这期间加入的后置处理器会让配方作废
+		int generation = getBeanPostProcessorGeneration();
+		InstantiationAwareBeanPostProcessor[] ibps = findInstantiationAwareBeanPostProcessors();
+		List<BeanPostProcessor> beanPostProcessors = getBeanPostProcessors();
+		BeanPostProcessor[] bps = beanPostProcessors.toArray(new BeanPostProcessor[beanPostProcessors.size()]);
+		Class<?> beanClass = (mbd.hasBeanClass() ? mbd.getBeanClass() : null);
+		Method initMethod = null;
+		String initMethodName = mbd.getInitMethodName();
+		if (beanClass != null && initMethodName != null) {
+			initMethod = (mbd.isNonPublicAccessAllowed() ? BeanUtils.findMethod(beanClass, initMethodName) : ClassUtils
+					.getMethodIfAvailable(beanClass, initMethodName));
+		}
+		this.prototypeCreationRecipes.put(beanName, new PrototypeCreationRecipe(mbd, generation, ibps, bps,
+				beanClass, initMethod));
+	}
+
+	/**
+	 * 从后置处理器列表里挑出所有的 InstantiationAwareBeanPostProcessor。
+	 * 挑好的数组按后置处理器列表的版本缓存，列表没有变化时不再遍历、不分配对象
+	 * 
+	 * @return
+	 */
+	private InstantiationAwareBeanPostProcessor[] findInstantiationAwareBeanPostProcessors() {
+		if (!hasInstantiationAwareBeanPostProcessors()) {
+			return null;
+		}
+		// 先取版本再遍历列表，这期间加入的后置处理器会让缓存作废
+		int generation = getBeanPostProcessorGeneration();
+		FilteredInstantiationAwareBeanPostProcessors filtered = this.filteredInstantiationAwareBeanPostProcessors;
+		if (filtered != null && filtered.beanPostProcessorGeneration == generation) {
+			return filtered.processors;
+		}
+		List<InstantiationAwareBeanPostProcessor> ibps = new ArrayList<InstantiationAwareBeanPostProcessor>();
+		for (BeanPostProcessor bp : getBeanPostProcessors()) {
+			if (bp instanceof InstantiationAwareBeanPostProcessor) {
+				ibps.add((InstantiationAwareBeanPostProcessor) bp);
 			}
-		} catch (Throwable ex) {
-			throw new BeanCreationException(mbd.getResourceDescription(), beanName,
-					"BeanPostProcessor before instantiation of bean failed", ex);
 		}
+		InstantiationAwareBeanPostProcessor[] processors = ibps.toArray(new InstantiationAwareBeanPostProcessor[ibps
+				.size()]);
+		this.filteredInstantiationAwareBeanPostProcessors = new FilteredInstantiationAwareBeanPostProcessors(generation,
+				processors);
+		return processors;
+	}
 
-		// 创建实例
-		Object beanInstance = doCreateBean(beanName, mbd, args);
-		if (logger.isDebugEnabled()) {
-			logger.debug("Finished creating instance of bean '" + beanName + "'");
+	/**
+	 * 记录创建耗时时，当前正在创建的bean 进入一个阶段
+	 * 
+	 * @param phase
+	 * @return 之前的阶段，交给 exitCreationPhase 恢复
+	 */
+	private BeanCreationTimer.Phase enterCreationPhase(BeanCreationTimer.Phase phase) {
+		BeanCreationTimer timer = this.creationTimer;
+		return (timer != null ? timer.enterPhase(phase) : null);
+	}
+
+	private void exitCreationPhase(BeanCreationTimer.Phase previousPhase) {
+		BeanCreationTimer timer = this.creationTimer;
+		if (timer != null) {
+			timer.enterPhase(previousPhase);
 		}
-		return beanInstance;
 	}
 
 	/**
@@ -355,6 +534,7 @@ public abstract class AbstractAutowireCapableBeanFactory extends AbstractBeanFac
 		}
 		// 如果装配器为空，则创建一个实例装配器
 		if (instanceWrapper == null) {
+			enterCreationPhase(BeanCreationTimer.Phase.INSTANTIATE);
 			instanceWrapper = createBeanInstance(beanName, mbd, args);
 		}
 
@@ -366,6 +546,7 @@ public abstract class AbstractAutowireCapableBeanFactory extends AbstractBeanFac
 		synchronized (mbd.postProcessingLock) {
 			if (!mbd.postProcessed) {
 				// 后置处理
+				enterCreationPhase(BeanCreationTimer.Phase.POST_PROCESS);
 				applyMergedBeanDefinitionPostProcessors(mbd, beanType, beanName);
 				mbd.postProcessed = true;
 			}
@@ -599,7 +780,16 @@ public abstract class AbstractAutowireCapableBeanFactory extends AbstractBeanFac
 	 * @return
 	 */
 	private FactoryBean getSingletonFactoryBeanForTypeCheck(String beanName, RootBeanDefinition mbd) {
-		synchronized (getSingletonMutex()) {
+		// 和这个bean 的创建用同一把锁，避免和正在创建它的线程抢着做部分创建。
+		// 只是类型检查，不等待：别的线程正在创建它时和它正在创建中一样返回null，
+		// 否则这里的等待不在wait-for 图里，死锁检测发现不了
+		ReentrantLock creationLock = getSingletonCreationLock(beanName);
+		if (!creationLock.tryLock()) {
+			lockAcquired(LockContentionMonitor.SINGLETON_CREATION_LOCK, 0, true);
+			return null;
+		}
+		lockAcquired(LockContentionMonitor.SINGLETON_CREATION_LOCK, 0, false);
+		try {
 			BeanWrapper bw = this.factoryBeanInstanceCache.get(beanName);
 			if (bw != null) {
 				return (FactoryBean) bw.getWrappedInstance();
@@ -627,6 +817,8 @@ public abstract class AbstractAutowireCapableBeanFactory extends AbstractBeanFac
 				this.factoryBeanInstanceCache.put(beanName, bw);
 			}
 			return fb;
+		} finally {
+			creationLock.unlock();
 		}
 	}
 
@@ -747,6 +939,14 @@ public abstract class AbstractAutowireCapableBeanFactory extends AbstractBeanFac
 			return instantiateUsingFactoryMethod(beanName, mbd, args);
 		}
 
+		// 原型bean 的创建配方里已经记下了构造方式，不用再去拿构造参数的锁
+		PrototypeCreationRecipe recipe = (args == null ? getCreationRecipe(beanName, mbd) : null);
+		Boolean constructorAutowiring = (recipe != null ? recipe.getConstructorAutowiring() : null);
+		if (constructorAutowiring != null) {
+			return (constructorAutowiring ? autowireConstructor(beanName, mbd, null, null) : instantiateBean(beanName,
+					mbd));
+		}
+
 		boolean resolved = false;
 		boolean autowireNecessary = false;
 		if (args == null) {
@@ -759,6 +959,9 @@ public abstract class AbstractAutowireCapableBeanFactory extends AbstractBeanFac
 		}
 		// 重新创建一个相同的bean的快捷方式
 		if (resolved) {
+			if (recipe != null) {
+				recipe.setConstructorAutowiring(autowireNecessary);
+			}
 			if (autowireNecessary) {
 				return autowireConstructor(beanName, mbd, null, null);
 			} else {
@@ -863,6 +1066,22 @@ public abstract class AbstractAutowireCapableBeanFactory extends AbstractBeanFac
 	 * @param bw
 	 */
 	protected void populateBean(String beanName, AbstractBeanDefinition mbd, BeanWrapper bw) {
+		BeanCreationTimer.Phase previousPhase = enterCreationPhase(BeanCreationTimer.Phase.POPULATE);
+		try {
+			doPopulateBean(beanName, mbd, bw);
+		} finally {
+			exitCreationPhase(previousPhase);
+		}
+	}
+
+	/**
+	 * 实际填充bean 的属性
+	 * 
+	 * @param beanName
+	 * @param mbd
+	 * @param bw
+	 */
+	private void doPopulateBean(String beanName, AbstractBeanDefinition mbd, BeanWrapper bw) {
 		PropertyValues pvs = mbd.getPropertyValues();
 
 		if (bw == null) {
@@ -875,17 +1094,19 @@ public abstract class AbstractAutowireCapableBeanFactory extends AbstractBeanFac
 			}
 		}
 
+		// 原型bean 用创建配方里挑好的后置处理器，其他的用按后置处理器列表版本缓存的数组，都不用每次遍历整个列表
+		PrototypeCreationRecipe recipe = getCreationRecipe(beanName, mbd);
+		InstantiationAwareBeanPostProcessor[] ibps = (recipe != null ? recipe.getInstantiationAwareBeanPostProcessors()
+				: findInstantiationAwareBeanPostProcessors());
+
 		// 给任何instantiationawarebeanpostprocessors机会之前修改bean的状态属性设置。这可以被用来，例如，可支持字段注入的样式。
 		boolean continueWithPropertyPopulation = true;
 
-		if (!mbd.isSynthetic() && hasInstantiationAwareBeanPostProcessors()) {
-			for (BeanPostProcessor bp : getBeanPostProcessors()) {
-				if (bp instanceof InstantiationAwareBeanPostProcessor) {
-					InstantiationAwareBeanPostProcessor ibp = (InstantiationAwareBeanPostProcessor) bp;
-					if (!ibp.postProcessAfterInstantiation(bw.getWrappedInstance(), beanName)) {
-						continueWithPropertyPopulation = false;
-						break;
-					}
+		if (!mbd.isSynthetic() && ibps != null) {
+			for (InstantiationAwareBeanPostProcessor ibp : ibps) {
+				if (!ibp.postProcessAfterInstantiation(bw.getWrappedInstance(), beanName)) {
+					continueWithPropertyPopulation = false;
+					break;
 				}
 			}
 		}
@@ -894,8 +1115,11 @@ public abstract class AbstractAutowireCapableBeanFactory extends AbstractBeanFac
 			return;
 		}
 
-		if (mbd.getResolvedAutowireMode() == RootBeanDefinition.AUTOWIRE_BY_NAME
-				|| mbd.getResolvedAutowireMode() == RootBeanDefinition.AUTOWIRE_BY_TYPE) {
+		// 原型bean 的创建配方里记着需要自动装配的属性，没有时不用复制一份属性值；
+		// 没有配方时不预先检查，否则autowireByName/autowireByType 里会再扫描一遍属性
+		if ((mbd.getResolvedAutowireMode() == RootBeanDefinition.AUTOWIRE_BY_NAME || mbd.getResolvedAutowireMode() == RootBeanDefinition.AUTOWIRE_BY_TYPE)
+				&& (recipe == null || recipe.getBeanClass() != bw.getWrappedClass() || getAutowireCandidates(beanName,
+						mbd, bw).length > 0)) {
 			MutablePropertyValues newPvs = new MutablePropertyValues(pvs);
 
 			// 增加属性值，基于自动装备的名字。
@@ -916,14 +1140,11 @@ public abstract class AbstractAutowireCapableBeanFactory extends AbstractBeanFac
 
 		if (hasInstAwareBpps || needsDepCheck) {
 			PropertyDescriptor[] filteredPds = filterPropertyDescriptorsForDependencyCheck(bw);
-			if (hasInstAwareBpps) {
-				for (BeanPostProcessor bp : getBeanPostProcessors()) {
-					if (bp instanceof InstantiationAwareBeanPostProcessor) {
-						InstantiationAwareBeanPostProcessor ibp = (InstantiationAwareBeanPostProcessor) bp;
-						pvs = ibp.postProcessPropertyValues(pvs, filteredPds, bw.getWrappedInstance(), beanName);
-						if (pvs == null) {
-							return;
-						}
+			if (hasInstAwareBpps && ibps != null) {
+				for (InstantiationAwareBeanPostProcessor ibp : ibps) {
+					pvs = ibp.postProcessPropertyValues(pvs, filteredPds, bw.getWrappedInstance(), beanName);
+					if (pvs == null) {
+						return;
 					}
 				}
 			}
@@ -944,7 +1165,7 @@ public abstract class AbstractAutowireCapableBeanFactory extends AbstractBeanFac
 	 * @param pvs
 	 */
 	protected void autowireByName(String beanName, AbstractBeanDefinition mbd, BeanWrapper bw, MutablePropertyValues pvs) {
-		String[] propertyNames = unsatisfiedNonSimpleProperties(mbd, bw);
+		String[] propertyNames = getAutowireCandidates(beanName, mbd, bw);
 		for (String propertyName : propertyNames) {
 			if (containsBean(propertyName)) {
 				Object bean = getBean(propertyName);
@@ -977,15 +1198,18 @@ public abstract class AbstractAutowireCapableBeanFactory extends AbstractBeanFac
 			converter = bw;
 		}
 
+		String[] propertyNames = getAutowireCandidates(beanName, mbd, bw);
+		if (propertyNames.length == 0) {
+			return;
+		}
 		Set<String> autowiredBeanNames = new LinkedHashSet<String>(4);
-		String[] propertyNames = unsatisfiedNonSimpleProperties(mbd, bw);
+		boolean eager = !PriorityOrdered.class.isAssignableFrom(bw.getWrappedClass());
 		for (String propertyName : propertyNames) {
 			try {
 				PropertyDescriptor pd = bw.getPropertyDescriptor(propertyName);
 				// 不要尝试为type object的装配by type ：没有道理，即使它在技术上是不满意的，非简单的属性。
 				if (!Object.class.equals(pd.getPropertyType())) {
 					MethodParameter methodParam = BeanUtils.getWriteMethodParameter(pd);
-					boolean eager = !PriorityOrdered.class.isAssignableFrom(bw.getWrappedClass());
 					DependencyDescriptor desc = new AutowireByTypeDependencyDescriptor(methodParam, eager);
 					Object autowiredArgument = resolveDependency(desc, beanName, autowiredBeanNames, converter);
 					if (autowiredArgument != null) {
@@ -1006,6 +1230,27 @@ public abstract class AbstractAutowireCapableBeanFactory extends AbstractBeanFac
 		}
 	}
 
+	/**
+	 * 返回需要自动装配的属性，原型bean 第一次算出来之后记到创建配方里
+	 * 
+	 * @param beanName
+	 * @param mbd
+	 * @param bw
+	 * @return
+	 */
+	private String[] getAutowireCandidates(String beanName, AbstractBeanDefinition mbd, BeanWrapper bw) {
+		PrototypeCreationRecipe recipe = getCreationRecipe(beanName, mbd);
+		if (recipe == null || recipe.getBeanClass() != bw.getWrappedClass()) {
+			return unsatisfiedNonSimpleProperties(mbd, bw);
+		}
+		String[] propertyNames = recipe.getAutowireCandidates();
+		if (propertyNames == null) {
+			propertyNames = unsatisfiedNonSimpleProperties(mbd, bw);
+			recipe.setAutowireCandidates(propertyNames);
+		}
+		return propertyNames;
+	}
+
 	/**
 	 * 返回一个数组 内容是non-simple bean properties 为不满足的。
 	 * 
@@ -1014,16 +1259,27 @@ public abstract class AbstractAutowireCapableBeanFactory extends AbstractBeanFac
 	 * @return
 	 */
 	protected String[] unsatisfiedNonSimpleProperties(AbstractBeanDefinition mbd, BeanWrapper bw) {
-		Set<String> result = new TreeSet<String>();
 		PropertyValues pvs = mbd.getPropertyValues();
 		PropertyDescriptor[] pds = bw.getPropertyDescriptors();
+		// 属性名不会重复，按最多的个数开数组，排序之后截掉多余的部分
+		String[] result = new String[pds.length];
+		int count = 0;
 		for (PropertyDescriptor pd : pds) {
 			if (pd.getWriteMethod() != null && !isExcludedFromDependencyCheck(pd) && !pvs.contains(pd.getName())
 					&& !BeanUtils.isSimpleProperty(pd.getPropertyType())) {
-				result.add(pd.getName());
+				result[count++] = pd.getName();
 			}
 		}
-		return StringUtils.toStringArray(result);
+		if (count == 0) {
+			return new String[0];
+		}
+		Arrays.sort(result, 0, count);
+		if (count == result.length) {
+			return result;
+		}
+		String[] names = new String[count];
+		System.arraycopy(result, 0, names, 0, count);
+		return names;
 	}
 
 	/**
@@ -1046,7 +1302,9 @@ public abstract class AbstractAutowireCapableBeanFactory extends AbstractBeanFac
 	protected PropertyDescriptor[] filterPropertyDescriptorsForDependencyCheck(BeanWrapper bw) {
 		PropertyDescriptor[] filtered = this.filteredPropertyDescriptorsCache.get(bw.getWrappedClass());
 		if (filtered == null) {
+			long lockRequestTime = lockRequested();
 			synchronized (this.filteredPropertyDescriptorsCache) {
+				lockAcquired(LockContentionMonitor.FILTERED_PROPERTY_DESCRIPTORS, lockRequestTime);
 				filtered = this.filteredPropertyDescriptorsCache.get(bw.getWrappedClass());
 				if (filtered == null) {
 					List<PropertyDescriptor> pds = new LinkedList<PropertyDescriptor>(Arrays.asList(bw
@@ -1149,12 +1407,22 @@ public abstract class AbstractAutowireCapableBeanFactory extends AbstractBeanFac
 		}
 		BeanDefinitionValueResolver valueResolver = new BeanDefinitionValueResolver(this, beanName, mbd, converter);
 
+		// 原型bean 用创建配方里转换好的属性值。转换的结果和bean class 有关，实例的类型和配方的不一样时不用
+		PrototypeCreationRecipe recipe = (mbd instanceof AbstractBeanDefinition ? getCreationRecipe(beanName,
+				(AbstractBeanDefinition) mbd) : null);
+		if (recipe != null && recipe.getBeanClass() != bw.getWrappedClass()) {
+			recipe = null;
+		}
+
 		// 创建一个深拷贝，解析这些值的关系
 		List<PropertyValue> deepCopy = new ArrayList<PropertyValue>(original.size());
 		boolean resolveNecessary = false;
 		for (PropertyValue pv : original) {
+			PropertyValue convertedPv = null;
 			if (pv.isConverted()) {
 				deepCopy.add(pv);
+			} else if (recipe != null && (convertedPv = recipe.getConvertedPropertyValue(pv)) != null) {
+				deepCopy.add(convertedPv);
 			} else {
 				String propertyName = pv.getName();
 				Object originalValue = pv.getValue();
@@ -1170,12 +1438,18 @@ public abstract class AbstractAutowireCapableBeanFactory extends AbstractBeanFac
 				if (resolvedValue == originalValue) {
 					if (convertible) {
 						pv.setConvertedValue(convertedValue);
+						if (recipe != null) {
+							recipe.addConvertedPropertyValue(pv);
+						}
 					}
 					deepCopy.add(pv);
 				} else if (convertible && originalValue instanceof TypedStringValue
 						&& !((TypedStringValue) originalValue).isDynamic()
 						&& !(convertedValue instanceof Collection || ObjectUtils.isArray(convertedValue))) {
 					pv.setConvertedValue(convertedValue);
+					if (recipe != null) {
+						recipe.addConvertedPropertyValue(pv);
+					}
 					deepCopy.add(pv);
 				} else {
 					resolveNecessary = true;
@@ -1223,6 +1497,23 @@ public abstract class AbstractAutowireCapableBeanFactory extends AbstractBeanFac
 	 * @return
 	 */
 	protected Object initializeBean(final String beanName, final Object bean, RootBeanDefinition mbd) {
+		BeanCreationTimer.Phase previousPhase = enterCreationPhase(BeanCreationTimer.Phase.INITIALIZE);
+		try {
+			return doInitializeBean(beanName, bean, mbd);
+		} finally {
+			exitCreationPhase(previousPhase);
+		}
+	}
+
+	/**
+	 * 实际初始化bean：aware 方法、初始化前后的后置处理 和 init 方法
+	 * 
+	 * @param beanName
+	 * @param bean
+	 * @param mbd
+	 * @return
+	 */
+	private Object doInitializeBean(final String beanName, final Object bean, RootBeanDefinition mbd) {
 		if (System.getSecurityManager() != null) {
 			AccessController.doPrivileged(new PrivilegedAction<Object>() {
 				public Object run() {
@@ -1234,12 +1525,17 @@ public abstract class AbstractAutowireCapableBeanFactory extends AbstractBeanFac
 			invokeAwareMethods(beanName, bean);
 		}
 
+		// 原型bean 用创建配方里记下的后置处理器，不用每次遍历后置处理器列表
+		PrototypeCreationRecipe recipe = getCreationRecipe(beanName, mbd);
 		Object wrappedBean = bean;
 		if (mbd == null || !mbd.isSynthetic()) {
-			wrappedBean = applyBeanPostProcessorsBeforeInitialization(wrappedBean, beanName);
+			enterCreationPhase(BeanCreationTimer.Phase.POST_PROCESS);
+			wrappedBean = (recipe != null ? applyBeanPostProcessorsBeforeInitialization(wrappedBean, beanName,
+					recipe.getBeanPostProcessors()) : applyBeanPostProcessorsBeforeInitialization(wrappedBean, beanName));
 		}
 
 		try {
+			enterCreationPhase(BeanCreationTimer.Phase.INITIALIZE);
 			invokeInitMethods(beanName, wrappedBean, mbd);
 		} catch (Throwable ex) {
 			throw new BeanCreationException((mbd != null ? mbd.getResourceDescription() : null), beanName,
@@ -1247,7 +1543,9 @@ public abstract class AbstractAutowireCapableBeanFactory extends AbstractBeanFac
 		}
 
 		if (mbd == null || !mbd.isSynthetic()) {
-			wrappedBean = applyBeanPostProcessorsAfterInitialization(wrappedBean, beanName);
+			enterCreationPhase(BeanCreationTimer.Phase.POST_PROCESS);
+			wrappedBean = (recipe != null ? applyBeanPostProcessorsAfterInitialization(wrappedBean, beanName,
+					recipe.getBeanPostProcessors()) : applyBeanPostProcessorsAfterInitialization(wrappedBean, beanName));
 		}
 		return wrappedBean;
 	}
@@ -1318,8 +1616,14 @@ public abstract class AbstractAutowireCapableBeanFactory extends AbstractBeanFac
 	 */
 	protected void invokeCustomInitMethod(String beanName, final Object bean, RootBeanDefinition mbd) throws Throwable {
 		String initMethodName = mbd.getInitMethodName();
-		final Method initMethod = (mbd.isNonPublicAccessAllowed() ? BeanUtils.findMethod(bean.getClass(),
-				initMethodName) : ClassUtils.getMethodIfAvailable(bean.getClass(), initMethodName));
+		// 原型bean 用创建配方里已经找好的init 方法
+		PrototypeCreationRecipe recipe = getCreationRecipe(beanName, mbd);
+		Method resolvedInitMethod = (recipe != null ? recipe.getInitMethod(bean) : null);
+		if (resolvedInitMethod == null) {
+			resolvedInitMethod = (mbd.isNonPublicAccessAllowed() ? BeanUtils.findMethod(bean.getClass(), initMethodName)
+					: ClassUtils.getMethodIfAvailable(bean.getClass(), initMethodName));
+		}
+		final Method initMethod = resolvedInitMethod;
 		if (initMethod == null) {
 			if (mbd.isEnforceInitMethod()) {
 				throw new BeanDefinitionValidationException("Couldn't find an init method named '" + initMethodName
@@ -1377,6 +1681,12 @@ public abstract class AbstractAutowireCapableBeanFactory extends AbstractBeanFac
 		this.factoryBeanInstanceCache.remove(beanName);
 	}
 
+	@Override
+	protected void clearMergedBeanDefinition(String beanName) {
+		super.clearMergedBeanDefinition(beanName);
+		this.prototypeCreationRecipes.remove(beanName);
+	}
+
 	/**
 	 * 指定DependencyDescriptor 变种 autowire="byType"。
 	 * 
@@ -1395,4 +1705,20 @@ public abstract class AbstractAutowireCapableBeanFactory extends AbstractBeanFac
 		}
 	}
 
+	/**
+	 * 挑好的 InstantiationAwareBeanPostProcessor 和 挑的时候后置处理器列表的版本
+	 */
+	private static class FilteredInstantiationAwareBeanPostProcessors {
+
+		final int beanPostProcessorGeneration;
+
+		final InstantiationAwareBeanPostProcessor[] processors;
+
+		FilteredInstantiationAwareBeanPostProcessors(int beanPostProcessorGeneration,
+				InstantiationAwareBeanPostProcessor[] processors) {
+			this.beanPostProcessorGeneration = beanPostProcessorGeneration;
+			this.processors = processors;
+		}
+	}
+
 }
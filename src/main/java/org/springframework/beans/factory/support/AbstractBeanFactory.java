@@ -10,18 +10,20 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.naming.spi.ObjectFactory;
 
 import org.springframework.beans.BeansException;
 import org.springframework.beans.factory.BeanFactory;
+import org.springframework.beans.factory.BeanHandle;
 import org.springframework.beans.factory.NoSuchBeanDefinitionException;
 import org.springframework.beans.factory.config.ConfigurableBeanFactory;
 import org.springframework.util.Assert;
@@ -36,6 +38,13 @@ import org.springframework.util.StringUtils;
  */
 public abstract class AbstractBeanFactory extends FactoryBeanRegistrySupport implements ConfigurableBeanFactory {
 
+	/**
+	 * bean definition 上的属性，值为 Boolean.TRUE 或者 "true" 时，这个单例是可回收的：
+	 * 按注册中心的空闲时间和最大个数回收，下次getBean 时重新创建
+	 */
+	public static final String EVICTABLE_SINGLETON_ATTRIBUTE = AbstractBeanFactory.class.getName()
+			+ ".evictableSingleton";
+
 	/** 父类bean factory ： 供继承使用 */
 	private BeanFactory parentBeanFactory;
 
@@ -74,6 +83,9 @@ public abstract class AbstractBeanFactory extends FactoryBeanRegistrySupport imp
 	/** 标记 DestructionAwareBeanPostProcessors 是否已经被注册 */
 	private boolean hasDestructionAwareBeanPostProcessors;
 
+	/** 后置处理器列表的版本，每次加入后置处理器时加一，按它作废根据后置处理器算出来的缓存 */
+	private volatile int beanPostProcessorGeneration = 0;
+
 	/** 定义scopes */
 	private final Map<String, Scope> scopes = new HashMap<String, Scope>();
 
@@ -83,11 +95,26 @@ public abstract class AbstractBeanFactory extends FactoryBeanRegistrySupport imp
 	/** RootBeanDefinition */
 	private final Map<String, RootBeanDefinition> mergedBeanDefinitions = new ConcurrentHashMap<String, RootBeanDefinition>();
 
-	/** 存储已经创建的bean 的bean name */
-	private final Set<String> alreadyCreated = Collections.synchronizedSet(new HashSet<String>());
+	/** 每个bean name 的merge 锁 */
+	private final ConcurrentMap<String, ReentrantLock> mergeLocks = new ConcurrentHashMap<String, ReentrantLock>(64);
+
+	/** 缓存的merge 结果的父子关系： parent bean name --> 以它为parent 的bean name */
+	private final ConcurrentMap<String, Set<String>> mergedChildBeanNames = new ConcurrentHashMap<String, Set<String>>(16);
+
+	/** bean 元数据查询的缓存 */
+	private final BeanMetadataCache beanMetadataCache = new BeanMetadataCache();
 
-	/** 存储正在创建的bean 的bean name */
-	private final ThreadLocal<Object> prototypesCurrentlyInCreation = new NamedThreadLocal<Object>(
+	/** 存储已经创建的bean 的bean name，基于ConcurrentHashMap，读写都不加全局锁 */
+	private final Set<String> alreadyCreated = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>(256));
+
+	/** 驻留的bean name 解析结果 调用方传进来的名字 --> BeanKey，别名变化时整张表换掉 */
+	private volatile ConcurrentMap<String, BeanKey> beanKeys = new ConcurrentHashMap<String, BeanKey>(256);
+
+	/**
+	 * 存储正在创建的bean 的bean name，每个线程一个栈，嵌套创建时反复使用。
+	 * 只在创建原型bean 时才放到线程上，栈空了就移除，不会让只取过bean 的线程一直挂着它
+	 */
+	private final ThreadLocal<PrototypeCreationStack> prototypesCurrentlyInCreation = new NamedThreadLocal<PrototypeCreationStack>(
 			"Prototype beans currently in creation");
 
 	public AbstractBeanFactory() {
@@ -145,10 +172,27 @@ public abstract class AbstractBeanFactory extends FactoryBeanRegistrySupport imp
 	 */
 	protected <T> T doGetBean(final String name, final Class<T> requiredType, final Object[] args, boolean typeCheckOnly)
 			throws BeansException {
-		final String beanName = transformedBeanName(name);
+		final BeanKey beanKey = resolveBeanKey(name);
+		if (args == null) {
+			// 同一个名字、同一个类型已经取过，单例也还在，直接返回上次的结果
+			Object resolvedObject = beanKey.getResolvedObject(requiredType);
+			if (resolvedObject != null) {
+				return (T) resolvedObject;
+			}
+		}
+		final String beanName = beanKey.getBeanName();
 		Object bean;
-
-		Object sharedInstance = getSingleton(beanName);
+		// 结果是否可以记到BeanKey 上
+		boolean resolvable = false;
+
+		// 先取BeanKey 槽里已经创建好的单例，没有再查单例缓存
+		Object sharedInstance = beanKey.getSingletonInstance();
+		if (sharedInstance == null) {
+			sharedInstance = getSingleton(beanName);
+			if (sharedInstance != null && !isSingletonCurrentlyInCreation(beanName)) {
+				cacheSingletonInstance(beanKey, sharedInstance);
+			}
+		}
 		// 获取的实例不为空
 		if (sharedInstance != null && args == null) {
 			// 打日志
@@ -162,6 +206,9 @@ public abstract class AbstractBeanFactory extends FactoryBeanRegistrySupport imp
 				}
 			}
 			bean = getObjectForBeanInstance(sharedInstance, name, beanName, null);
+			// 只记完全创建好的单例(已经放进槽里的)，FactoryBean 生产的对象也必须是单例
+			resolvable = (beanKey.getSingletonInstance() == sharedInstance && (!(sharedInstance instanceof FactoryBean)
+					|| beanKey.isFactoryDereference() || ((FactoryBean<?>) sharedInstance).isSingleton()));
 		}
 		// 非单例的实例，则需要做相关的验证处理，新创建一个实例
 		else {
@@ -211,7 +258,11 @@ public abstract class AbstractBeanFactory extends FactoryBeanRegistrySupport imp
 				sharedInstance = getSingleton(beanName, new ObjectFactory<Object>() {
 					public Object getObject() throws BeansException {
 						try {
-							return createBean(beanName, mbd, args);
+							Object singletonObject = createBean(beanName, mbd, args);
+							if (isEvictableSingleton(mbd)) {
+								registerEvictableSingleton(beanName);
+							}
+							return singletonObject;
 						} catch (BeansException ex) {
 							// 报错了则要销毁这个单例的bean name
 							destroySingleton(beanName);
@@ -275,10 +326,29 @@ public abstract class AbstractBeanFactory extends FactoryBeanRegistrySupport imp
 		// 检查所需类型的实际的bean实例的类型是否相匹配。
 		// isAssignableFrom(): 判定此 Class 对象所表示的类或接口与指定的 Class
 		// 参数所表示的类或接口是否相同，或是否是其超类或超接口。
+		// 类型不匹配时转换类型，转换过的结果不记到BeanKey 上
+		if (requiredType != null && bean != null && !requiredType.isAssignableFrom(bean.getClass())) {
+			return adaptBeanInstance(name, bean, requiredType);
+		}
+		if (resolvable && bean != null) {
+			beanKey.setResolvedObject(requiredType, sharedInstance, bean);
+		}
+		// 最后返回bean
+		return (T) bean;
+	}
+
+	/**
+	 * 检查bean 实例是否是所需的类型，不是则尝试转换，getBean 和 bean 句柄共用
+	 * 
+	 * @param name
+	 * @param bean
+	 * @param requiredType
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	private <T> T adaptBeanInstance(String name, Object bean, Class<T> requiredType) {
 		if (requiredType != null && bean != null && !requiredType.isAssignableFrom(bean.getClass())) {
-			// 类型不匹配
 			try {
-				// 转换类型
 				return getTypeConverter().convertIfNecessary(bean, requiredType);
 			} catch (TypeMismatchException ex) {
 				if (logger.isDebugEnabled()) {
@@ -289,7 +359,6 @@ public abstract class AbstractBeanFactory extends FactoryBeanRegistrySupport imp
 				throw new BeanNotOfRequiredTypeException(name, requiredType, bean.getClass());
 			}
 		}
-		// 最后返回bean
 		return (T) bean;
 	}
 
@@ -329,10 +398,11 @@ public abstract class AbstractBeanFactory extends FactoryBeanRegistrySupport imp
 
 			// 如果没有parentBeanFactory 或者 在当前factory中包含 bean 。
 			RootBeanDefinition mbd = getMergedLocalBeanDefinition(beanName);
+			BeanMetadataCache.BeanMetadata metadata = getBeanMetadata(beanName, mbd);
 
 			// mbd 在beanFactory中 如果不是废弃的，则返回已经创建的bean的状态
-			if (mbd.isSingleton()) {
-				if (isFactoryBean(beanName, mbd)) {
+			if (metadata != null ? metadata.singleton : mbd.isSingleton()) {
+				if (isCachedFactoryBean(beanName, mbd, metadata)) {
 					// 如果是废弃的直接返回true
 					if (BeanFactoryUtils.isFactoryDereference(name)) {
 						return true;
@@ -358,9 +428,10 @@ public abstract class AbstractBeanFactory extends FactoryBeanRegistrySupport imp
 			return parentBeanFactory.isPrototype(originalBeanName(name));
 		}
 		RootBeanDefinition mbd = getMergedLocalBeanDefinition(beanName);
-		if (mbd.isPrototype()) {
+		BeanMetadataCache.BeanMetadata metadata = getBeanMetadata(beanName, mbd);
+		if (metadata != null ? metadata.prototype : mbd.isPrototype()) {
 			// mbd 在beanFactory中 如果不是废弃的，则返回已经创建的bean的状态
-			return (!BeanFactoryUtils.isFactoryDereference(name) || isFactoryBean(beanName, mbd));
+			return (!BeanFactoryUtils.isFactoryDereference(name) || isCachedFactoryBean(beanName, mbd, metadata));
 		} else {
 			// 是Singleton的或者 作用域的，不是 prototype的 。
 			// 即便这样FactoryBean也许会仍然产生一个prototype object
@@ -368,7 +439,7 @@ public abstract class AbstractBeanFactory extends FactoryBeanRegistrySupport imp
 				// 废弃的则返回false
 				return false;
 			}
-			if (isFactoryBean(beanName, mbd)) {
+			if (isCachedFactoryBean(beanName, mbd, metadata)) {
 				final FactoryBean<?> factoryBean = (FactoryBean<?>) getBean(FACTORY_BEAN_PREFIX + beanName);
 				//
 				if (System.getSecurityManager() != null) {
@@ -399,7 +470,7 @@ public abstract class AbstractBeanFactory extends FactoryBeanRegistrySupport imp
 			if (beanInstance instanceof FactoryBean) {
 				if (!BeanFactoryUtils.isFactoryDereference(name)) {
 					// 获取FactoryBean的类型
-					Class<?> type = getTypeForFactoryBean((FactoryBean<?>) beanInstance);
+					Class<?> type = getTypeForFactoryBean(beanName, (FactoryBean<?>) beanInstance);
 					// 判断类型是否符合
 					return (type != null && ClassUtils.isAssignable(typeToMatch, type));
 				} else {
@@ -424,35 +495,46 @@ public abstract class AbstractBeanFactory extends FactoryBeanRegistrySupport imp
 
 			// 检索对应的 bean definition
 			RootBeanDefinition mbd = getMergedLocalBeanDefinition(beanName);
+			boolean isFactoryDereference = BeanFactoryUtils.isFactoryDereference(name);
+
+			// 先查元数据里按目标类型记下的结果
+			BeanMetadataCache.BeanMetadata metadata = getBeanMetadata(beanName, mbd);
+			if (metadata != null) {
+				Boolean matches = metadata.getTypeMatch(typeToMatch, isFactoryDereference);
+				if (matches != null) {
+					this.beanMetadataCache.recordHit();
+					return matches;
+				}
+				this.beanMetadataCache.recordMiss();
+			}
 
 			// 如果检查任何装饰的bean definition，：我们假定它会比较容易确定装饰bean的类型与代理的类型。
 			BeanDefinitionHolder dbd = mbd.getDecoratedDefinition();
-			if (dbd != null && !BeanFactoryUtils.isFactoryDereference(name)) {
-				// 获取merged bean efinition
-				RootBeanDefinition tbd = getMergedBeanDefinition(dbd.getBeanName(), dbd.getBeanDefinition(), mbd);
-				// TODO:
-				Class<?> targetClass = predictBeanType(dbd.getBeanName(), tbd, FactoryBean.class, typeToMatch);
+			if (dbd != null && !isFactoryDereference) {
+				Class<?> targetClass = getCachedDecoratedTargetType(mbd, dbd, metadata, FactoryBean.class, typeToMatch);
 				if (targetClass != null && !FactoryBean.class.isAssignableFrom(targetClass)) {
-					return typeToMatch.isAssignableFrom(targetClass);
+					return cacheTypeMatch(metadata, typeToMatch, false, typeToMatch.isAssignableFrom(targetClass));
 				}
 			}
 
-			Class<?> beanClass = predictBeanType(beanName, mbd, FactoryBean.class, typeToMatch);
+			Class<?> beanClass = getCachedPredictedType(beanName, mbd, metadata, FactoryBean.class, typeToMatch);
 			if (beanClass == null) {
-				return false;
+				return cacheTypeMatch(metadata, typeToMatch, isFactoryDereference, false);
 			}
 
 			// 检查这个 bean class 是否是我们正在处理的FactoryBean
 			if (FactoryBean.class.isAssignableFrom(beanClass)) {
-				if (!BeanFactoryUtils.isFactoryDereference(name)) {
+				if (!isFactoryDereference) {
 					// 如果它是一个FactoryBean，我们想看看它的创造，而不是工厂类。
-					Class<?> type = getTypeForFactoryBean(beanName, mbd);
+					// 生产的对象的类型有自己的缓存，会随着单例变化，结果不记到元数据里
+					Class<?> type = getCachedTypeForFactoryBean(beanName, mbd);
 					return (type != null && typeToMatch.isAssignableFrom(type));
 				} else {
-					return typeToMatch.isAssignableFrom(beanClass);
+					return cacheTypeMatch(metadata, typeToMatch, true, typeToMatch.isAssignableFrom(beanClass));
 				}
 			} else {
-				return !BeanFactoryUtils.isFactoryDereference(name) && typeToMatch.isAssignableFrom(beanClass);
+				return cacheTypeMatch(metadata, typeToMatch, isFactoryDereference, !isFactoryDereference
+						&& typeToMatch.isAssignableFrom(beanClass));
 			}
 		}
 	}
@@ -466,7 +548,7 @@ public abstract class AbstractBeanFactory extends FactoryBeanRegistrySupport imp
 		if (beanInstance != null) {
 			if (beanInstance instanceof FactoryBean && !BeanFactoryUtils.isFactoryDereference(name)) {
 				// 获取FactoryBean的类型
-				return getTypeForFactoryBean((FactoryBean<?>) beanInstance);
+				return getTypeForFactoryBean(beanName, (FactoryBean<?>) beanInstance);
 			} else {
 				// 不属于FactoryBean 直接返回类型
 				return beanInstance.getClass();
@@ -485,24 +567,24 @@ public abstract class AbstractBeanFactory extends FactoryBeanRegistrySupport imp
 
 			// 没有父bean parent
 			RootBeanDefinition mbd = getMergedLocalBeanDefinition(beanName);
+			BeanMetadataCache.BeanMetadata metadata = getBeanMetadata(beanName, mbd);
 
 			// 如果检查任何装饰的bean definition，：我们假定它会比较容易确定装饰bean的类型与代理的类型。
 			BeanDefinitionHolder dbd = mbd.getDecoratedDefinition();
 			if (dbd != null && !BeanFactoryUtils.isFactoryDereference(name)) {
-				RootBeanDefinition tbd = getMergedBeanDefinition(dbd.getBeanName(), dbd.getBeanDefinition(), mbd);
-				Class<?> targetClass = predictBeanType(dbd.getBeanName(), tbd);
+				Class<?> targetClass = getCachedDecoratedTargetType(mbd, dbd, metadata);
 				if (targetClass != null && !FactoryBean.class.isAssignableFrom(targetClass)) {
 					return targetClass;
 				}
 			}
 
-			Class<?> beanClass = predictBeanType(beanName, mbd);
+			Class<?> beanClass = getCachedPredictedType(beanName, mbd, metadata);
 
 			// 检查这个 bean class 是否是我们正在处理的FactoryBean
 			if (beanClass != null && FactoryBean.class.isAssignableFrom(beanClass)) {
 				if (!BeanFactoryUtils.isFactoryDereference(name)) {
 					// 返回bean类型
-					return getTypeForFactoryBean(beanName, mbd);
+					return getCachedTypeForFactoryBean(beanName, mbd);
 				} else {
 					return beanClass;
 				}
@@ -609,6 +691,15 @@ public abstract class AbstractBeanFactory extends FactoryBeanRegistrySupport imp
 		return this.cacheBeanMetadata;
 	}
 
+	/**
+	 * 返回bean 元数据查询的缓存，可以读取命中和未命中的统计
+	 * 
+	 * @return
+	 */
+	public BeanMetadataCache getBeanMetadataCache() {
+		return this.beanMetadataCache;
+	}
+
 	@Override
 	public void setBeanExpressionResolver(BeanExpressionResolver resolver) {
 		this.beanExpressionResolver = resolver;
@@ -708,6 +799,7 @@ public abstract class AbstractBeanFactory extends FactoryBeanRegistrySupport imp
 		if (beanPostProcessor instanceof DestructionAwareBeanPostProcessor) {
 			this.hasDestructionAwareBeanPostProcessors = true;
 		}
+		this.beanPostProcessorGeneration++;
 	}
 
 	@Override
@@ -724,6 +816,15 @@ public abstract class AbstractBeanFactory extends FactoryBeanRegistrySupport imp
 		return this.beanPostProcessors;
 	}
 
+	/**
+	 * 返回后置处理器列表的版本，通过 addBeanPostProcessor 加入后置处理器之后会变
+	 * 
+	 * @return
+	 */
+	protected final int getBeanPostProcessorGeneration() {
+		return this.beanPostProcessorGeneration;
+	}
+
 	/**
 	 * 返回是否是实例化形式下的BeanPostProcessors
 	 * 
@@ -792,6 +893,7 @@ public abstract class AbstractBeanFactory extends FactoryBeanRegistrySupport imp
 					|| otherAbstractFactory.hasInstantiationAwareBeanPostProcessors;
 			this.hasDestructionAwareBeanPostProcessors = this.hasDestructionAwareBeanPostProcessors
 					|| otherAbstractFactory.hasDestructionAwareBeanPostProcessors;
+			this.beanPostProcessorGeneration++;
 			this.scopes.putAll(otherAbstractFactory.scopes);
 			this.securityContextProvider = otherAbstractFactory.securityContextProvider;
 		} else {
@@ -831,7 +933,8 @@ public abstract class AbstractBeanFactory extends FactoryBeanRegistrySupport imp
 			return ((ConfigurableBeanFactory) getParentBeanFactory()).isFactoryBean(name);
 		}
 		// 如果beanDefinition中，有则检查本地的BeanDefinition
-		return isFactoryBean(beanName, getMergedLocalBeanDefinition(beanName));
+		RootBeanDefinition mbd = getMergedLocalBeanDefinition(beanName);
+		return isCachedFactoryBean(beanName, mbd, getBeanMetadata(beanName, mbd));
 	}
 
 	/**
@@ -839,21 +942,13 @@ public abstract class AbstractBeanFactory extends FactoryBeanRegistrySupport imp
 	 * 
 	 * @param beanName
 	 */
-	@SuppressWarnings("unchecked")
 	protected void beforePrototypeCreation(String beanName) {
-		Object curVal = this.prototypesCurrentlyInCreation.get();
-		if (curVal == null) {
-			this.prototypesCurrentlyInCreation.set(beanName);
-		} else if (curVal instanceof String) {
-			// 如果值是string的，则放到一个set中
-			Set<String> beanNameSet = new HashSet<String>(2);
-			beanNameSet.add((String) curVal);
-			beanNameSet.add(beanName);
-			this.prototypesCurrentlyInCreation.set(beanNameSet);
-		} else {
-			Set<String> beanNameSet = (Set<String>) curVal;
-			beanNameSet.add(beanName);
+		PrototypeCreationStack stack = this.prototypesCurrentlyInCreation.get();
+		if (stack == null) {
+			stack = new PrototypeCreationStack();
+			this.prototypesCurrentlyInCreation.set(stack);
 		}
+		stack.push(beanName);
 	}
 
 	/**
@@ -861,15 +956,12 @@ public abstract class AbstractBeanFactory extends FactoryBeanRegistrySupport imp
 	 * 
 	 * @param beanName
 	 */
-	@SuppressWarnings("unchecked")
 	protected void afterPrototypeCreation(String beanName) {
-		Object curVal = this.prototypesCurrentlyInCreation.get();
-		if (curVal instanceof String) {
-			this.prototypesCurrentlyInCreation.remove();
-		} else if (curVal instanceof Set) {
-			Set<String> beanNameSet = (Set<String>) curVal;
-			beanNameSet.remove(beanName);
-			if (beanNameSet.isEmpty()) {
+		PrototypeCreationStack stack = this.prototypesCurrentlyInCreation.get();
+		if (stack != null) {
+			stack.remove(beanName);
+			// 栈空了就从线程上移除
+			if (stack.isEmpty()) {
 				this.prototypesCurrentlyInCreation.remove();
 			}
 		}
@@ -882,10 +974,9 @@ public abstract class AbstractBeanFactory extends FactoryBeanRegistrySupport imp
 	 * @return
 	 */
 	protected final boolean isPrototypeCurrentlyInCreation(String beanName) {
-		Object curVal = this.prototypesCurrentlyInCreation.get();
-		// 不为空且beanName相同，或者属于set且包含beanName
-		return (curVal != null && (curVal.equals(beanName) || (curVal instanceof Set && ((Set<?>) curVal)
-				.contains(beanName))));
+		// 只读，没有时不创建
+		PrototypeCreationStack stack = this.prototypesCurrentlyInCreation.get();
+		return (stack != null && stack.contains(beanName));
 	}
 
 	@Override
@@ -933,17 +1024,91 @@ public abstract class AbstractBeanFactory extends FactoryBeanRegistrySupport imp
 		}
 	}
 
-	// 在子类中实现
-	// @Override
-	// public void registerAlias(String beanName, String alias) throws
-	// BeanDefinitionStoreException {
-	//
-	// }
-	//
-	// @Override
-	// public void resolveAliases(StringValueResolver valueResolver) {
-	//
-	// }
+	/**
+	 * 按bean 现在的作用域绑定句柄：单例读BeanKey 上缓存的结果，原型 和 自定义作用域绑定merged 的bean definition。
+	 * 本工厂没有这个bean 时交给parent
+	 */
+	@Override
+	public <T> BeanHandle<T> getBeanHandle(String name, Class<T> requiredType) throws BeansException {
+		String beanName = transformedBeanName(name);
+		if (!containsBeanDefinition(beanName)) {
+			if (containsSingleton(beanName)) {
+				return new SingletonBeanHandle<T>(name, beanName, requiredType);
+			}
+			BeanFactory parentBeanFactory = getParentBeanFactory();
+			if (parentBeanFactory instanceof ConfigurableBeanFactory) {
+				return ((ConfigurableBeanFactory) parentBeanFactory).getBeanHandle(originalBeanName(name), requiredType);
+			}
+			if (parentBeanFactory == null) {
+				throw new NoSuchBeanDefinitionException(name);
+			}
+		}
+		return bindBeanHandle(name, beanName, requiredType);
+	}
+
+	/**
+	 * 按bean 现在的merged bean definition 绑定句柄
+	 * 
+	 * @param name
+	 * @param beanName
+	 * @param requiredType
+	 * @return
+	 */
+	private <T> BeanHandle<T> bindBeanHandle(String name, String beanName, Class<T> requiredType) {
+		if (!containsBeanDefinition(beanName)) {
+			// parent 不是 ConfigurableBeanFactory，只能每次都走 getBean
+			return new SingletonBeanHandle<T>(name, beanName, requiredType);
+		}
+		// 先标记成已经创建，这样merge 好的bean definition 会被缓存，句柄才能用它判断绑定是否还有效
+		markBeanAsCreated(beanName);
+		RootBeanDefinition mbd = getMergedLocalBeanDefinition(beanName);
+		checkMergedBeanDefinition(mbd, beanName, null);
+		if (mbd.isSingleton()) {
+			return new SingletonBeanHandle<T>(name, beanName, requiredType);
+		}
+		Scope scope = null;
+		if (!mbd.isPrototype()) {
+			scope = this.scopes.get(mbd.getScope());
+			if (scope == null) {
+				throw new IllegalStateException("No Scope registered for scope '" + mbd.getScope() + "'");
+			}
+		}
+		// depends-on 的bean 在绑定时就初始化好
+		String[] dependsOn = mbd.getDependsOn();
+		if (dependsOn != null) {
+			for (String dependsOnBean : dependsOn) {
+				getBean(dependsOnBean);
+				registerDependentBean(dependsOnBean, beanName);
+			}
+		}
+		return new PrototypeBeanHandle<T>(name, beanName, requiredType, mbd, scope);
+	}
+
+	// 别名变化之后，已经驻留的名字可能解析到别的bean，整张BeanKey 表作废
+	@Override
+	public void registerAlias(String name, String alias) {
+		super.registerAlias(name, alias);
+		clearBeanKeyCache();
+	}
+
+	@Override
+	public void removeAlias(String alias) {
+		super.removeAlias(alias);
+		clearBeanKeyCache();
+	}
+
+	@Override
+	public void resolveAliases(StringValueResolver valueResolver) {
+		super.resolveAliases(valueResolver);
+		clearBeanKeyCache();
+	}
+
+	@Override
+	public void destroySingletons() {
+		super.destroySingletons();
+		clearBeanKeyCache();
+		this.beanMetadataCache.clear();
+	}
 
 	// ---------------------------------------------------------------------
 	// Implementation methods
@@ -959,6 +1124,72 @@ public abstract class AbstractBeanFactory extends FactoryBeanRegistrySupport imp
 		return canonicalName(BeanFactoryUtils.transformedBeanName(name));
 	}
 
+	/**
+	 * 返回名字对应的驻留的BeanKey，同一个名字第二次之后不再剥离 "&" 前缀 和 解析别名。<br>
+	 * 只驻留在本工厂里存在的bean，查不到的名字每次都重新解析，不会撑大缓存
+	 * 
+	 * @param name
+	 * @return
+	 */
+	BeanKey resolveBeanKey(String name) {
+		ConcurrentMap<String, BeanKey> keys = this.beanKeys;
+		BeanKey key = keys.get(name);
+		if (key != null) {
+			return key;
+		}
+		String beanName = transformedBeanName(name);
+		boolean factoryDereference = BeanFactoryUtils.isFactoryDereference(name);
+		if (!containsSingleton(beanName) && !containsBeanDefinition(beanName)) {
+			return new BeanKey(name, factoryDereference, new BeanKey(beanName));
+		}
+		// 别名 和 带前缀的名字都共享规范bean name 的BeanKey
+		BeanKey canonicalKey = keys.get(beanName);
+		if (canonicalKey == null) {
+			canonicalKey = new BeanKey(beanName);
+			BeanKey existingKey = keys.putIfAbsent(beanName, canonicalKey);
+			if (existingKey != null) {
+				canonicalKey = existingKey;
+			}
+		}
+		if (name.equals(beanName)) {
+			return canonicalKey;
+		}
+		key = new BeanKey(name, factoryDereference, canonicalKey);
+		BeanKey existingKey = keys.putIfAbsent(name, key);
+		return (existingKey != null ? existingKey : key);
+	}
+
+	/**
+	 * 把一个已经创建完的单例放进BeanKey 的槽里。放进去之后再检查一次单例缓存：
+	 * 如果这期间单例被移除了，就把槽清掉，不留下已经销毁的实例
+	 * 
+	 * @param beanKey
+	 * @param singletonInstance
+	 */
+	private void cacheSingletonInstance(BeanKey beanKey, Object singletonInstance) {
+		// 可回收的单例每次都要经过单例缓存，记录访问时间
+		if (isEvictableSingleton(beanKey.getBeanName())) {
+			return;
+		}
+		beanKey.setSingletonInstance(singletonInstance);
+		if (getSingleton(beanKey.getBeanName(), false) != singletonInstance) {
+			beanKey.clearSingletonInstance(singletonInstance);
+		}
+	}
+
+	/**
+	 * 作废所有驻留的BeanKey：别名 或者 bean definition 变化时调用
+	 */
+	protected void clearBeanKeyCache() {
+		ConcurrentMap<String, BeanKey> oldKeys = this.beanKeys;
+		if (!oldKeys.isEmpty()) {
+			this.beanKeys = new ConcurrentHashMap<String, BeanKey>(256);
+			for (BeanKey key : oldKeys.values()) {
+				key.clearSingletonInstance();
+			}
+		}
+	}
+
 	/**
 	 * 确定原来的名字，解决局部定义的别名的规范名称。
 	 * 
@@ -1071,71 +1302,174 @@ public abstract class AbstractBeanFactory extends FactoryBeanRegistrySupport imp
 	 */
 	protected RootBeanDefinition getMergedBeanDefinition(String beanName, BeanDefinition bd, BeanDefinition containingBd)
 			throws BeanDefinitionStoreException {
+		return getMergedBeanDefinition(beanName, bd, containingBd, false);
+	}
 
-		synchronized (this.mergedBeanDefinitions) {
-			RootBeanDefinition mbd = null;
-
-			// 检查全部的锁，为了执行相同的merge bean。如果没有指定containingBd，则获取RootBeanDefinition
-			if (containingBd == null) {
-				mbd = this.mergedBeanDefinitions.get(beanName);
+	/**
+	 * 返回一个RootBeanDefinition<br>
+	 * 每个bean name 一把锁，同一个名字只merge 一次，不同名字的merge 互不阻塞。
+	 * 锁总是从子到父的顺序获取，parent 链里不会反过来
+	 * 
+	 * @param beanName
+	 * @param bd
+	 * @param containingBd
+	 * @param parentOfCachedChild
+	 *            是否是在为一个要缓存的子bean definition merge 它的parent，这时parent 的merge 结果也缓存
+	 * @return
+	 * @throws BeanDefinitionStoreException
+	 */
+	private RootBeanDefinition getMergedBeanDefinition(String beanName, BeanDefinition bd,
+			BeanDefinition containingBd, boolean parentOfCachedChild) throws BeanDefinitionStoreException {
+		// 内部bean 的merge 结果不缓存，不需要加锁
+		if (containingBd != null) {
+			return doGetMergedBeanDefinition(beanName, bd, containingBd, false);
+		}
+		RootBeanDefinition mbd = this.mergedBeanDefinitions.get(beanName);
+		if (mbd != null) {
+			return mbd;
+		}
+		ReentrantLock mergeLock = getMergeLock(beanName);
+		if (mergeLock.tryLock()) {
+			lockAcquired(LockContentionMonitor.MERGED_BEAN_DEFINITIONS, 0, false);
+		} else {
+			long lockRequestTime = System.nanoTime();
+			mergeLock.lock();
+			lockAcquired(LockContentionMonitor.MERGED_BEAN_DEFINITIONS, System.nanoTime() - lockRequestTime, true);
+		}
+		try {
+			// 拿到锁之后再检查一次，也许别的线程已经merge 好了
+			mbd = this.mergedBeanDefinitions.get(beanName);
+			if (mbd == null) {
+				// 只缓存合并的bean的定义，如果我们对已经创建的bean的实例，或者至少已经创建了一个实例。
+				boolean cacheable = isCacheBeanMetadata()
+						&& (parentOfCachedChild || isBeanEligibleForMetadataCaching(beanName));
+				mbd = doGetMergedBeanDefinition(beanName, bd, null, cacheable);
+				if (cacheable) {
+					this.mergedBeanDefinitions.put(beanName, mbd);
+				}
 			}
+			return mbd;
+		} finally {
+			mergeLock.unlock();
+		}
+	}
 
-			// 获取的RootBeanDefinition 定义为空
-			if (mbd == null) {
-				// 判断parent
-				if (bd.getParentName() == null) {
-					// 父也为空，则根据指定的bd 克隆一份
-					if (bd instanceof RootBeanDefinition) {
-						mbd = ((RootBeanDefinition) bd).cloneBeanDefinition();
-					} else {
-						// 不属于RootBeanDefinition类型，则new一个
-						mbd = new RootBeanDefinition(bd);
+	/**
+	 * 真正merge bean definition 的地方
+	 * 
+	 * @param beanName
+	 * @param bd
+	 * @param containingBd
+	 * @param cacheable
+	 *            merge 的结果是否会被缓存，会缓存时parent 的merge 结果也一起缓存，并记下父子关系
+	 * @return
+	 * @throws BeanDefinitionStoreException
+	 */
+	private RootBeanDefinition doGetMergedBeanDefinition(String beanName, BeanDefinition bd,
+			BeanDefinition containingBd, boolean cacheable) throws BeanDefinitionStoreException {
+		RootBeanDefinition mbd;
+		// 判断parent
+		if (bd.getParentName() == null) {
+			// 父也为空，则根据指定的bd 克隆一份
+			if (bd instanceof RootBeanDefinition) {
+				mbd = ((RootBeanDefinition) bd).cloneBeanDefinition();
+			} else {
+				// 不属于RootBeanDefinition类型，则new一个
+				mbd = new RootBeanDefinition(bd);
+			}
+		} else {
+			// 父存在，则利用父的merge
+			BeanDefinition pbd;
+			try {
+				String parentBeanName = transformedBeanName(bd.getParentName());
+				if (!beanName.equals(parentBeanName)) {
+					// 父名和指定的名称不一样
+					pbd = getMergedParentBeanDefinition(parentBeanName, cacheable);
+					if (cacheable) {
+						registerMergedChild(parentBeanName, beanName);
 					}
 				} else {
-					// 父存在，则利用父的merge
-					BeanDefinition pbd;
-					try {
-						String parentBeanName = transformedBeanName(bd.getParentName());
-						if (!beanName.equals(parentBeanName)) {
-							// 父名和指定的名称不一样
-							pbd = getMergedBeanDefinition(parentBeanName);
-						} else {
-							// 父BeanFactory属于ConfigurableBeanFactory，进行强转获取，不属于则抛出异常
-							if (getParentBeanFactory() instanceof ConfigurableBeanFactory) {
-								pbd = ((ConfigurableBeanFactory) getParentBeanFactory())
-										.getMergedBeanDefinition(parentBeanName);
-							} else {
-								throw new NoSuchBeanDefinitionException(bd.getParentName(), "Parent name '"
-										+ bd.getParentName() + "' is equal to bean name '" + beanName
-										+ "': cannot be resolved without an AbstractBeanFactory parent");
-							}
-						}
-					} catch (NoSuchBeanDefinitionException ex) {
-						throw new BeanDefinitionStoreException(bd.getResourceDescription(), beanName,
-								"Could not resolve parent bean definition '" + bd.getParentName() + "'", ex);
+					// 父BeanFactory属于ConfigurableBeanFactory，进行强转获取，不属于则抛出异常
+					if (getParentBeanFactory() instanceof ConfigurableBeanFactory) {
+						pbd = ((ConfigurableBeanFactory) getParentBeanFactory()).getMergedBeanDefinition(parentBeanName);
+					} else {
+						throw new NoSuchBeanDefinitionException(bd.getParentName(), "Parent name '"
+								+ bd.getParentName() + "' is equal to bean name '" + beanName
+								+ "': cannot be resolved without an AbstractBeanFactory parent");
 					}
-					// 深层copy 用 有限的值
-					mbd = new RootBeanDefinition(pbd);
-					mbd.overrideFrom(bd);
 				}
+			} catch (NoSuchBeanDefinitionException ex) {
+				throw new BeanDefinitionStoreException(bd.getResourceDescription(), beanName,
+						"Could not resolve parent bean definition '" + bd.getParentName() + "'", ex);
+			}
+			// 深层copy 用 有限的值
+			mbd = new RootBeanDefinition(pbd);
+			mbd.overrideFrom(bd);
+		}
 
-				// 如果在配置之前（判断scope的值是否为空），则设置默认为singleton的scope
-				if (!StringUtils.hasLength(mbd.getScope())) {
-					mbd.setScope(RootBeanDefinition.SCOPE_SINGLETON);
-				}
+		// 如果在配置之前（判断scope的值是否为空），则设置默认为singleton的scope
+		if (!StringUtils.hasLength(mbd.getScope())) {
+			mbd.setScope(RootBeanDefinition.SCOPE_SINGLETON);
+		}
 
-				// 如果指定的containingBd不空，不能Singleton，则需要将mbd设置成containingBd scope
-				if (containingBd != null && !containingBd.isSingleton() && mbd.isSingleton()) {
-					mbd.setScope(containingBd.getScope());
-				}
+		// 如果指定的containingBd不空，不能Singleton，则需要将mbd设置成containingBd scope
+		if (containingBd != null && !containingBd.isSingleton() && mbd.isSingleton()) {
+			mbd.setScope(containingBd.getScope());
+		}
+		return mbd;
+	}
 
-				// 只缓存合并的bean的定义，如果我们对已经创建的bean的实例，或者至少已经创建了一个实例。
-				if (containingBd == null && isCacheBeanMetadata() && isBeanEligibleForMetadataCaching(beanName)) {
-					this.mergedBeanDefinitions.put(beanName, mbd);
-				}
+	/**
+	 * 返回parent 的merged bean definition。子的merge 结果要缓存时，本地的parent 也缓存，
+	 * 这样作为模板的abstract parent 不会在每个子bean merge 时都重新merge 一遍
+	 * 
+	 * @param parentBeanName
+	 * @param cacheable
+	 * @return
+	 * @throws BeansException
+	 */
+	private BeanDefinition getMergedParentBeanDefinition(String parentBeanName, boolean cacheable)
+			throws BeansException {
+		if (!cacheable || (!containsBeanDefinition(parentBeanName) && getParentBeanFactory() instanceof ConfigurableBeanFactory)) {
+			return getMergedBeanDefinition(parentBeanName);
+		}
+		return getMergedBeanDefinition(parentBeanName, getBeanDefinition(parentBeanName), null, true);
+	}
+
+	/**
+	 * 记下父子关系，parent 的merge 结果作废时一起作废子的
+	 * 
+	 * @param parentBeanName
+	 * @param childBeanName
+	 */
+	private void registerMergedChild(String parentBeanName, String childBeanName) {
+		Set<String> children = this.mergedChildBeanNames.get(parentBeanName);
+		if (children == null) {
+			Set<String> newChildren = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>(4));
+			children = this.mergedChildBeanNames.putIfAbsent(parentBeanName, newChildren);
+			if (children == null) {
+				children = newChildren;
+			}
+		}
+		children.add(childBeanName);
+	}
+
+	/**
+	 * 返回bean name 对应的merge 锁
+	 * 
+	 * @param beanName
+	 * @return
+	 */
+	private ReentrantLock getMergeLock(String beanName) {
+		ReentrantLock lock = this.mergeLocks.get(beanName);
+		if (lock == null) {
+			ReentrantLock newLock = new ReentrantLock();
+			lock = this.mergeLocks.putIfAbsent(beanName, newLock);
+			if (lock == null) {
+				lock = newLock;
 			}
-			return mbd;
 		}
+		return lock;
 	}
 
 	/**
@@ -1166,6 +1500,16 @@ public abstract class AbstractBeanFactory extends FactoryBeanRegistrySupport imp
 	 */
 	protected void clearMergedBeanDefinition(String beanName) {
 		this.mergedBeanDefinitions.remove(beanName);
+		this.beanMetadataCache.remove(beanName);
+		// 子的merge 结果里复制了parent 的值，一起作废
+		Set<String> children = this.mergedChildBeanNames.remove(beanName);
+		if (children != null) {
+			for (String childBeanName : children) {
+				if (!childBeanName.equals(beanName)) {
+					clearMergedBeanDefinition(childBeanName);
+				}
+			}
+		}
 	}
 
 	/**
@@ -1274,6 +1618,132 @@ public abstract class AbstractBeanFactory extends FactoryBeanRegistrySupport imp
 				|| (mbd.hasBeanClass() && FactoryBean.class.isAssignableFrom(mbd.getBeanClass()));
 	}
 
+	/**
+	 * 返回bean 在元数据缓存里的一项，不缓存时返回null。<br>
+	 * 只有merged bean definition 本身被缓存了才缓存元数据；设置了临时的ClassLoader 时推算出来的类型不能保留，也不缓存
+	 * 
+	 * @param beanName
+	 * @param mbd
+	 * @return
+	 */
+	private BeanMetadataCache.BeanMetadata getBeanMetadata(String beanName, RootBeanDefinition mbd) {
+		if (getTempClassLoader() != null || this.mergedBeanDefinitions.get(beanName) != mbd) {
+			return null;
+		}
+		return this.beanMetadataCache.obtain(beanName, mbd, getBeanPostProcessorGeneration());
+	}
+
+	/**
+	 * 先从元数据里取预估的bean 类型，没有时再预估并记下。
+	 * 没有临时的ClassLoader 时typesToMatch 不影响预估的结果，记下的类型 getType 和 isTypeMatch 共用
+	 * 
+	 * @param beanName
+	 * @param mbd
+	 * @param metadata
+	 * @param typesToMatch
+	 * @return
+	 */
+	private Class<?> getCachedPredictedType(String beanName, RootBeanDefinition mbd,
+			BeanMetadataCache.BeanMetadata metadata, Class<?>... typesToMatch) {
+		if (metadata == null) {
+			return predictBeanType(beanName, mbd, typesToMatch);
+		}
+		Object type = metadata.predictedType;
+		if (type != null) {
+			this.beanMetadataCache.recordHit();
+			return (type != BeanMetadataCache.BeanMetadata.NULL_TYPE ? (Class<?>) type : null);
+		}
+		this.beanMetadataCache.recordMiss();
+		Class<?> predictedType = predictBeanType(beanName, mbd);
+		metadata.predictedType = (predictedType != null ? predictedType : BeanMetadataCache.BeanMetadata.NULL_TYPE);
+		return predictedType;
+	}
+
+	/**
+	 * 先从元数据里取装饰的bean definition 的目标类型，没有时再merge 装饰的bean definition 并预估
+	 * 
+	 * @param mbd
+	 * @param dbd
+	 * @param metadata
+	 * @param typesToMatch
+	 * @return
+	 */
+	private Class<?> getCachedDecoratedTargetType(RootBeanDefinition mbd, BeanDefinitionHolder dbd,
+			BeanMetadataCache.BeanMetadata metadata, Class<?>... typesToMatch) {
+		if (metadata == null) {
+			RootBeanDefinition tbd = getMergedBeanDefinition(dbd.getBeanName(), dbd.getBeanDefinition(), mbd);
+			return predictBeanType(dbd.getBeanName(), tbd, typesToMatch);
+		}
+		Object type = metadata.decoratedTargetType;
+		if (type != null) {
+			this.beanMetadataCache.recordHit();
+			return (type != BeanMetadataCache.BeanMetadata.NULL_TYPE ? (Class<?>) type : null);
+		}
+		this.beanMetadataCache.recordMiss();
+		RootBeanDefinition tbd = getMergedBeanDefinition(dbd.getBeanName(), dbd.getBeanDefinition(), mbd);
+		Class<?> targetType = predictBeanType(dbd.getBeanName(), tbd);
+		metadata.decoratedTargetType = (targetType != null ? targetType : BeanMetadataCache.BeanMetadata.NULL_TYPE);
+		return targetType;
+	}
+
+	/**
+	 * 先从元数据里取是否是FactoryBean，没有时再判断并记下
+	 * 
+	 * @param beanName
+	 * @param mbd
+	 * @param metadata
+	 * @return
+	 */
+	private boolean isCachedFactoryBean(String beanName, RootBeanDefinition mbd, BeanMetadataCache.BeanMetadata metadata) {
+		if (metadata == null) {
+			return isFactoryBean(beanName, mbd);
+		}
+		Boolean factoryBean = metadata.factoryBean;
+		if (factoryBean != null) {
+			this.beanMetadataCache.recordHit();
+			return factoryBean;
+		}
+		this.beanMetadataCache.recordMiss();
+		boolean result = isFactoryBean(beanName, mbd);
+		metadata.factoryBean = result;
+		return result;
+	}
+
+	/**
+	 * 把只由bean definition 决定的isTypeMatch 结果记到元数据里
+	 * 
+	 * @param metadata
+	 * @param typeToMatch
+	 * @param factoryDereference
+	 * @param matches
+	 * @return matches
+	 */
+	private boolean cacheTypeMatch(BeanMetadataCache.BeanMetadata metadata, Class<?> typeToMatch,
+			boolean factoryDereference, boolean matches) {
+		if (metadata != null) {
+			metadata.setTypeMatch(typeToMatch, factoryDereference, matches);
+		}
+		return matches;
+	}
+
+	/**
+	 * 先从缓存里取FactoryBean 生产的对象的类型，没有缓存时再解析并缓存。
+	 * 类型查询(按类型自动装配的每个候选) 不用每次都扫描工厂方法 或者 为了类型检查创建FactoryBean
+	 * 
+	 * @param beanName
+	 * @param mbd
+	 * @return
+	 */
+	private Class<?> getCachedTypeForFactoryBean(String beanName, RootBeanDefinition mbd) {
+		Object cachedType = getCachedFactoryBeanObjectType(beanName);
+		if (cachedType != null) {
+			return (cachedType != NULL_OBJECT ? (Class<?>) cachedType : null);
+		}
+		Class<?> type = getTypeForFactoryBean(beanName, mbd);
+		cacheFactoryBeanObjectType(beanName, type);
+		return type;
+	}
+
 	/**
 	 * 尽可能的确定这个bean type是FactoryBean定义的。如果没有为目标类注册singleton instance才调用这个方法
 	 * 
@@ -1297,13 +1767,49 @@ public abstract class AbstractBeanFactory extends FactoryBeanRegistrySupport imp
 		}
 	}
 
+	@Override
+	protected void removeSingleton(String beanName) {
+		super.removeSingleton(beanName);
+		// 同时清掉BeanKey 槽里的单例
+		BeanKey key = this.beanKeys.get(beanName);
+		if (key != null) {
+			key.clearSingletonInstance();
+		}
+		this.beanMetadataCache.remove(beanName);
+	}
+
+	@Override
+	protected void singletonReplaced(String beanName, Object oldInstance, Object newInstance) {
+		super.singletonReplaced(beanName, oldInstance, newInstance);
+		// 槽里的旧实例清掉，下次读取时放入新实例
+		BeanKey key = this.beanKeys.get(beanName);
+		if (key != null) {
+			key.clearSingletonInstance();
+		}
+		this.beanMetadataCache.remove(beanName);
+	}
+
+	/**
+	 * 判断bean definition 是否标记成了可回收的单例
+	 * 
+	 * @param mbd
+	 * @return
+	 */
+	protected boolean isEvictableSingleton(RootBeanDefinition mbd) {
+		Object value = mbd.getAttribute(EVICTABLE_SINGLETON_ATTRIBUTE);
+		return (Boolean.TRUE.equals(value) || "true".equals(value));
+	}
+
 	/**
 	 * 标记bean已经被创建了
 	 * 
 	 * @param beanName
 	 */
 	protected void markBeanAsCreated(String beanName) {
-		this.alreadyCreated.add(beanName);
+		// 绝大多数调用时已经标记过了，先读一次，避免每次都写
+		if (!this.alreadyCreated.contains(beanName)) {
+			this.alreadyCreated.add(beanName);
+		}
 	}
 
 	/**
@@ -1447,4 +1953,160 @@ public abstract class AbstractBeanFactory extends FactoryBeanRegistrySupport imp
 	protected abstract Object createBean(String beanName, RootBeanDefinition mbd, Object[] args)
 			throws BeanCreationException;
 
+	/**
+	 * 单例的bean 句柄：读BeanKey 上记着的最终对象，没有时走一次 getBean 并跟上最新的BeanKey
+	 */
+	private class SingletonBeanHandle<T> implements BeanHandle<T> {
+
+		private final String name;
+
+		private final String beanName;
+
+		private final Class<T> requiredType;
+
+		/** 别名 或者 bean definition 变化后驻留的BeanKey 会被换掉，取不到时重新解析 */
+		private volatile BeanKey beanKey;
+
+		SingletonBeanHandle(String name, String beanName, Class<T> requiredType) {
+			this.name = name;
+			this.beanName = beanName;
+			this.requiredType = requiredType;
+			this.beanKey = resolveBeanKey(name);
+		}
+
+		public String getBeanName() {
+			return this.beanName;
+		}
+
+		@SuppressWarnings("unchecked")
+		public T get() throws BeansException {
+			Object object = this.beanKey.getResolvedObject(this.requiredType);
+			if (object != null) {
+				return (T) object;
+			}
+			T bean = doGetBean(this.name, this.requiredType, null, false);
+			this.beanKey = resolveBeanKey(this.name);
+			return bean;
+		}
+	}
+
+	/**
+	 * 原型 和 自定义作用域的bean 句柄：用绑定好的merged bean definition 直接创建，或者直接交给绑定好的Scope。
+	 * merged bean definition 被换掉之后走一次 getBean，再按新的bean definition 重新绑定：
+	 * 变成单例时换成单例的句柄；merged bean definition 不缓存 或者 作用域没有注册时，没法判断绑定是否有效，之后每次都走 getBean
+	 */
+	private class PrototypeBeanHandle<T> implements BeanHandle<T> {
+
+		private final String name;
+
+		private final String beanName;
+
+		private final Class<T> requiredType;
+
+		private volatile HandleBinding binding;
+
+		/** bean 变成单例之后换成的句柄 */
+		private volatile BeanHandle<T> singletonHandle;
+
+		/** 不再绑定，每次都走 getBean */
+		private volatile boolean unbound = false;
+
+		PrototypeBeanHandle(String name, String beanName, Class<T> requiredType, RootBeanDefinition mbd, Scope scope) {
+			this.name = name;
+			this.beanName = beanName;
+			this.requiredType = requiredType;
+			this.binding = new HandleBinding(beanName, mbd, scope);
+		}
+
+		public String getBeanName() {
+			return this.beanName;
+		}
+
+		public T get() throws BeansException {
+			BeanHandle<T> singletonHandle = this.singletonHandle;
+			if (singletonHandle != null) {
+				return singletonHandle.get();
+			}
+			if (this.unbound) {
+				return doGetBean(this.name, this.requiredType, null, false);
+			}
+			HandleBinding binding = this.binding;
+			if (mergedBeanDefinitions.get(this.beanName) != binding.mbd) {
+				T bean = doGetBean(this.name, this.requiredType, null, false);
+				rebind();
+				return bean;
+			}
+			if (isPrototypeCurrentlyInCreation(this.beanName)) {
+				throw new BeanCurrentlyInCreationException(this.beanName);
+			}
+			Object instance;
+			if (binding.scope == null) {
+				instance = binding.objectFactory.getObject();
+			} else {
+				try {
+					instance = binding.scope.get(this.beanName, binding.objectFactory);
+				} catch (IllegalStateException ex) {
+					throw new BeanCreationException(this.beanName, "Scope '" + binding.mbd.getScope()
+							+ "' is not active for the current thread; "
+							+ "consider defining a scoped proxy for this bean if you intend to refer to it from a singleton",
+							ex);
+				}
+			}
+			Object bean = getObjectForBeanInstance(instance, this.name, this.beanName, binding.mbd);
+			return adaptBeanInstance(this.name, bean, this.requiredType);
+		}
+
+		/**
+		 * 按 getBean 刚刚merge 好的bean definition 重新绑定
+		 */
+		private void rebind() {
+			RootBeanDefinition mbd = mergedBeanDefinitions.get(this.beanName);
+			if (mbd == null) {
+				// merged bean definition 不缓存，每次比较都会失败
+				this.unbound = true;
+				return;
+			}
+			if (mbd.isSingleton()) {
+				this.singletonHandle = new SingletonBeanHandle<T>(this.name, this.beanName, this.requiredType);
+				return;
+			}
+			Scope scope = null;
+			if (!mbd.isPrototype()) {
+				scope = scopes.get(mbd.getScope());
+				if (scope == null) {
+					this.unbound = true;
+					return;
+				}
+			}
+			this.binding = new HandleBinding(this.beanName, mbd, scope);
+		}
+	}
+
+	/**
+	 * 绑定好的创建方式：merged bean definition、Scope(原型时为null) 和 创建实例的ObjectFactory，建好之后不再修改
+	 */
+	private class HandleBinding {
+
+		final RootBeanDefinition mbd;
+
+		final Scope scope;
+
+		final ObjectFactory<Object> objectFactory;
+
+		HandleBinding(final String beanName, final RootBeanDefinition mbd, Scope scope) {
+			this.mbd = mbd;
+			this.scope = scope;
+			this.objectFactory = new ObjectFactory<Object>() {
+				public Object getObject() throws BeansException {
+					beforePrototypeCreation(beanName);
+					try {
+						return createBean(beanName, mbd, null);
+					} finally {
+						afterPrototypeCreation(beanName);
+					}
+				}
+			};
+		}
+	}
+
 }
@@ -0,0 +1,269 @@
+package org.springframework.beans.factory.support;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.core.NamedThreadLocal;
+
+/**
+ * 记录每个bean 的创建耗时<br>
+ * 创建bean 时会递归的创建它的依赖，所以每个线程维护一个正在创建的bean 的栈：一个bean 的包含时间(inclusive)是它从开始到结束的时间，
+ * 自身时间(self)是包含时间减去在它里面创建其他bean 的时间。自身时间再按阶段拆开：实例化、填充属性、初始化、后置处理。<br>
+ * 创建完之后可以生成一份报告：按包含时间最长的依赖链(关键路径) 和 自身时间最长的前N 个bean
+ * 
+ * @author yanbin
+ * 
+ */
+class BeanCreationTimer {
+
+	/**
+	 * bean 创建的阶段
+	 */
+	enum Phase {
+		INSTANTIATE, POPULATE, INITIALIZE, POST_PROCESS
+	}
+
+	/** 当前线程正在创建的bean 的栈顶 */
+	private final ThreadLocal<Frame> currentFrame = new NamedThreadLocal<Frame>("Bean creation timing frame");
+
+	/** 创建的记录 bean name --> record */
+	private final ConcurrentMap<String, Record> records = new ConcurrentHashMap<String, Record>(256);
+
+	/**
+	 * 当前线程开始创建一个bean
+	 * 
+	 * @param beanName
+	 */
+	public void beanCreationStarted(String beanName) {
+		Frame parent = this.currentFrame.get();
+		Frame frame = new Frame(beanName, parent, System.nanoTime());
+		this.currentFrame.set(frame);
+	}
+
+	/**
+	 * 当前线程创建完一个bean(不论成功与否)
+	 * 
+	 * @param beanName
+	 */
+	public void beanCreationFinished(String beanName) {
+		Frame frame = this.currentFrame.get();
+		if (frame == null || !frame.beanName.equals(beanName)) {
+			return;
+		}
+		long now = System.nanoTime();
+		frame.closePhase(now);
+		long inclusive = now - frame.startTime;
+
+		Record record = getRecord(beanName);
+		synchronized (record) {
+			record.count++;
+			record.inclusiveNanos += inclusive;
+			record.selfNanos += inclusive - frame.childNanos;
+			for (int i = 0; i < record.phaseNanos.length; i++) {
+				record.phaseNanos[i] += frame.phaseNanos[i];
+			}
+		}
+
+		Frame parent = frame.parent;
+		if (parent != null) {
+			parent.childNanos += inclusive;
+			Record parentRecord = getRecord(parent.beanName);
+			synchronized (parentRecord) {
+				parentRecord.dependencies.add(beanName);
+			}
+			this.currentFrame.set(parent);
+		} else {
+			this.currentFrame.remove();
+		}
+	}
+
+	/**
+	 * 当前正在创建的bean 进入一个阶段
+	 * 
+	 * @param phase
+	 * @return 之前的阶段，用来在结束时恢复；当前线程没有在创建bean 时返回null
+	 */
+	public Phase enterPhase(Phase phase) {
+		Frame frame = this.currentFrame.get();
+		if (frame == null) {
+			return null;
+		}
+		Phase previous = frame.phase;
+		long now = System.nanoTime();
+		frame.closePhase(now);
+		frame.phase = phase;
+		frame.phaseStartTime = now;
+		frame.childNanosAtPhaseStart = frame.childNanos;
+		return previous;
+	}
+
+	/**
+	 * 清空所有的记录
+	 */
+	public void reset() {
+		this.records.clear();
+	}
+
+	/**
+	 * 生成报告：关键路径(从包含时间最长的bean 开始，每一步走包含时间最长的依赖) 和 自身时间最长的前N 个bean
+	 * 
+	 * @param topCount
+	 * @return
+	 */
+	public String report(int topCount) {
+		StringBuilder sb = new StringBuilder();
+		List<String> criticalPath = getCriticalPath();
+		sb.append("Bean creation critical path:");
+		for (String beanName : criticalPath) {
+			Record record = this.records.get(beanName);
+			sb.append("\n  ").append(beanName).append(" - ").append(millis(record.inclusiveNanos))
+					.append(" ms inclusive, ").append(millis(record.selfNanos)).append(" ms self");
+		}
+
+		List<String> beanNames = new ArrayList<String>(this.records.keySet());
+		Collections.sort(beanNames, new Comparator<String>() {
+			public int compare(String name1, String name2) {
+				long self1 = records.get(name1).selfNanos;
+				long self2 = records.get(name2).selfNanos;
+				return (self1 > self2 ? -1 : (self1 == self2 ? 0 : 1));
+			}
+		});
+		sb.append("\nTop ").append(Math.min(topCount, beanNames.size())).append(" beans by self time:");
+		for (int i = 0; i < topCount && i < beanNames.size(); i++) {
+			String beanName = beanNames.get(i);
+			Record record = this.records.get(beanName);
+			sb.append("\n  ").append(beanName).append(" - ").append(millis(record.selfNanos)).append(" ms self");
+			Phase[] phases = Phase.values();
+			for (int j = 0; j < phases.length; j++) {
+				sb.append(j == 0 ? " (" : ", ").append(phases[j].name().toLowerCase()).append(" ")
+						.append(millis(record.phaseNanos[j])).append(" ms");
+			}
+			sb.append(")");
+			if (record.count > 1) {
+				sb.append(" over ").append(record.count).append(" creations");
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * 关键路径：按包含时间最长的依赖链
+	 * 
+	 * @return
+	 */
+	public List<String> getCriticalPath() {
+		List<String> path = new ArrayList<String>();
+		String beanName = null;
+		long longest = -1;
+		for (String name : this.records.keySet()) {
+			long inclusive = this.records.get(name).inclusiveNanos;
+			if (inclusive > longest) {
+				longest = inclusive;
+				beanName = name;
+			}
+		}
+		Set<String> visited = new LinkedHashSet<String>();
+		while (beanName != null && visited.add(beanName)) {
+			path.add(beanName);
+			String[] dependencies;
+			Record record = this.records.get(beanName);
+			synchronized (record) {
+				dependencies = record.dependencies.toArray(new String[record.dependencies.size()]);
+			}
+			beanName = null;
+			longest = -1;
+			for (String dependency : dependencies) {
+				Record dependencyRecord = this.records.get(dependency);
+				if (dependencyRecord != null && dependencyRecord.inclusiveNanos > longest) {
+					longest = dependencyRecord.inclusiveNanos;
+					beanName = dependency;
+				}
+			}
+		}
+		return path;
+	}
+
+	private Record getRecord(String beanName) {
+		Record record = this.records.get(beanName);
+		if (record == null) {
+			Record newRecord = new Record();
+			record = this.records.putIfAbsent(beanName, newRecord);
+			if (record == null) {
+				record = newRecord;
+			}
+		}
+		return record;
+	}
+
+	private static long millis(long nanos) {
+		return TimeUnit.NANOSECONDS.toMillis(nanos);
+	}
+
+	/**
+	 * 一个正在创建的bean，只在创建它的线程里使用
+	 */
+	private static class Frame {
+
+		final String beanName;
+
+		final Frame parent;
+
+		final long startTime;
+
+		/** 在它里面创建其他bean 用的时间 */
+		long childNanos;
+
+		/** 各个阶段的自身时间 */
+		final long[] phaseNanos = new long[Phase.values().length];
+
+		Phase phase;
+
+		long phaseStartTime;
+
+		long childNanosAtPhaseStart;
+
+		Frame(String beanName, Frame parent, long startTime) {
+			this.beanName = beanName;
+			this.parent = parent;
+			this.startTime = startTime;
+		}
+
+		/**
+		 * 结束当前阶段，把它的自身时间累加上去
+		 * 
+		 * @param now
+		 */
+		void closePhase(long now) {
+			if (this.phase != null) {
+				this.phaseNanos[this.phase.ordinal()] += (now - this.phaseStartTime)
+						- (this.childNanos - this.childNanosAtPhaseStart);
+				this.phase = null;
+			}
+		}
+	}
+
+	/**
+	 * 一个bean 的创建记录，原型bean 会累加多次创建
+	 */
+	private static class Record {
+
+		int count;
+
+		long inclusiveNanos;
+
+		long selfNanos;
+
+		final long[] phaseNanos = new long[Phase.values().length];
+
+		/** 创建它的过程中创建的bean */
+		final Set<String> dependencies = new LinkedHashSet<String>(4);
+	}
+
+}
@@ -0,0 +1,619 @@
+package org.springframework.beans.factory.support;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 紧凑的bean 依赖关系图，代替 bean name --> LinkedHashSet 的map<br>
+ * bean name 被驻留成连续的int 编号，每个bean 的邻接表是一行按插入顺序保存的int 编号，
+ * 一个bean 的邻接表按插入的顺序保存，所以查询的结果和原来的LinkedHashSet 一样。<br>
+ * 写邻接表时按bean 编号分段加锁，不同的bean 注册依赖不会互相竞争；bean name 的驻留只在第一次见到这个名字时加锁。<br>
+ * 每条边在两个方向上都有记录，bean 被销毁时断开它所有的边，回收它的编号给后面新见到的名字用，
+ * 所以依赖图的大小跟着同时存在的bean 走，不会随着可回收单例、bean definition 的反复注册一直增长。
+ * 回收编号时拿写锁，其他操作拿读锁，不会有操作拿着一个已经回收、又分给别的名字的编号
+ * 
+ * @author yanbin
+ * 
+ */
+class BeanDependencyGraph {
+
+	/** 每个分块的行数 */
+	private static final int CHUNK_SHIFT = 10;
+
+	private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+	/** 分段锁的个数 */
+	private static final int STRIPES = 64;
+
+	private static final String[] EMPTY_NAMES = new String[0];
+
+	/** bean name --> 编号 */
+	private final ConcurrentMap<String, Integer> beanIds = new ConcurrentHashMap<String, Integer>(256);
+
+	/** 编号 --> bean name，按分块保存，分块一旦分配就不再移动 */
+	private volatile String[][] nameChunks = new String[0][];
+
+	/** 下一个可用的编号 */
+	private int nextId = 0;
+
+	/** 回收的编号，驻留新名字时先从这里取 */
+	private int[] freeIds = new int[16];
+
+	private int freeIdCount = 0;
+
+	/** 回收编号拿写锁，其他操作拿读锁 */
+	private final ReentrantReadWriteLock idLock = new ReentrantReadWriteLock();
+
+	private final Lock readLock = this.idLock.readLock();
+
+	private final Lock writeLock = this.idLock.writeLock();
+
+	/** bean --> 依赖它的bean */
+	private final Adjacency dependents = new Adjacency();
+
+	/** bean --> 它依赖的bean */
+	private final Adjacency dependencies = new Adjacency();
+
+	/** bean --> 它包含的bean */
+	private final Adjacency contained = new Adjacency();
+
+	/** bean --> 包含它的bean */
+	private final Adjacency containing = new Adjacency();
+
+	/**
+	 * 注册一个依赖关系：dependentBeanName 依赖 beanName
+	 * 
+	 * @param beanName
+	 *            规范的bean name
+	 * @param dependentBeanName
+	 */
+	public void registerDependentBean(String beanName, String dependentBeanName) {
+		this.readLock.lock();
+		try {
+			int beanId = intern(beanName);
+			int dependentId = intern(dependentBeanName);
+			this.dependents.add(beanId, dependentId);
+			this.dependencies.add(dependentId, beanId);
+		} finally {
+			this.readLock.unlock();
+		}
+	}
+
+	/**
+	 * 注册一个包含关系：containingBeanName 包含 containedBeanName
+	 * 
+	 * @param containedBeanName
+	 * @param containingBeanName
+	 */
+	public void registerContainedBean(String containedBeanName, String containingBeanName) {
+		this.readLock.lock();
+		try {
+			int containedId = intern(containedBeanName);
+			int containingId = intern(containingBeanName);
+			this.contained.add(containingId, containedId);
+			this.containing.add(containedId, containingId);
+		} finally {
+			this.readLock.unlock();
+		}
+	}
+
+	public boolean hasDependentBean(String beanName) {
+		this.readLock.lock();
+		try {
+			Integer id = this.beanIds.get(beanName);
+			return (id != null && this.dependents.size(id) > 0);
+		} finally {
+			this.readLock.unlock();
+		}
+	}
+
+	public String[] getDependentBeans(String beanName) {
+		return getRow(this.dependents, beanName);
+	}
+
+	public String[] getDependenciesForBean(String beanName) {
+		return getRow(this.dependencies, beanName);
+	}
+
+	public String[] getContainedBeans(String beanName) {
+		return getRow(this.contained, beanName);
+	}
+
+	/**
+	 * 移除并返回依赖指定bean 的所有bean，同时从这些bean 的依赖表里移除它
+	 * 
+	 * @param beanName
+	 * @return
+	 */
+	public String[] removeDependentBeans(String beanName) {
+		return removeRow(this.dependents, this.dependencies, beanName);
+	}
+
+	/**
+	 * 移除并返回指定bean 包含的所有bean，同时从这些bean 的被包含表里移除它
+	 * 
+	 * @param beanName
+	 * @return
+	 */
+	public String[] removeContainedBeans(String beanName) {
+		return removeRow(this.contained, this.containing, beanName);
+	}
+
+	/**
+	 * 从依赖图里移除一个bean：断开它在两个方向上的所有边，回收它的编号。代价和它的边的个数成正比<br>
+	 * bean 被销毁之后调用，之后再为这个名字注册依赖时重新分配编号
+	 * 
+	 * @param beanName
+	 */
+	public void release(String beanName) {
+		this.writeLock.lock();
+		try {
+			Integer id = this.beanIds.remove(beanName);
+			if (id == null) {
+				return;
+			}
+			disconnect(this.dependencies, this.dependents, id);
+			disconnect(this.dependents, this.dependencies, id);
+			disconnect(this.contained, this.containing, id);
+			disconnect(this.containing, this.contained, id);
+			this.nameChunks[id >>> CHUNK_SHIFT][id & CHUNK_MASK] = null;
+			synchronized (this) {
+				if (this.freeIdCount == this.freeIds.length) {
+					int[] newFreeIds = new int[this.freeIds.length * 2];
+					System.arraycopy(this.freeIds, 0, newFreeIds, 0, this.freeIdCount);
+					this.freeIds = newFreeIds;
+				}
+				this.freeIds[this.freeIdCount++] = id;
+			}
+		} finally {
+			this.writeLock.unlock();
+		}
+	}
+
+	/**
+	 * 清空整个依赖图
+	 */
+	public void clear() {
+		this.writeLock.lock();
+		try {
+			synchronized (this) {
+				this.beanIds.clear();
+				this.nameChunks = new String[0][];
+				this.nextId = 0;
+				this.freeIdCount = 0;
+				this.dependents.clear();
+				this.dependencies.clear();
+				this.contained.clear();
+				this.containing.clear();
+			}
+		} finally {
+			this.writeLock.unlock();
+		}
+	}
+
+	private String[] getRow(Adjacency adjacency, String beanName) {
+		this.readLock.lock();
+		try {
+			return toNames(adjacency.get(idOf(beanName)));
+		} finally {
+			this.readLock.unlock();
+		}
+	}
+
+	private String[] removeRow(Adjacency adjacency, Adjacency reverse, String beanName) {
+		this.readLock.lock();
+		try {
+			return toNames(disconnect(adjacency, reverse, idOf(beanName)));
+		} finally {
+			this.readLock.unlock();
+		}
+	}
+
+	/**
+	 * 移除一个bean 在邻接表里的一行，再从反向的邻接表里移除对应的边
+	 * 
+	 * @param adjacency
+	 * @param reverse
+	 * @param id
+	 * @return 移除的一行，没有则返回null
+	 */
+	private int[] disconnect(Adjacency adjacency, Adjacency reverse, int id) {
+		int[] ids = adjacency.remove(id);
+		if (ids != null) {
+			for (int i = 1; i <= ids[0]; i++) {
+				reverse.removeEdge(ids[i], id);
+			}
+		}
+		return ids;
+	}
+
+	/**
+	 * 返回bean name 的编号，没有则分配一个编号，先用回收的。调用方持有读锁
+	 * 
+	 * @param beanName
+	 * @return
+	 */
+	private int intern(String beanName) {
+		Integer id = this.beanIds.get(beanName);
+		if (id != null) {
+			return id;
+		}
+		synchronized (this) {
+			id = this.beanIds.get(beanName);
+			if (id == null) {
+				int newId = (this.freeIdCount > 0 ? this.freeIds[--this.freeIdCount] : this.nextId++);
+				int chunk = newId >>> CHUNK_SHIFT;
+				String[][] chunks = this.nameChunks;
+				if (chunk >= chunks.length) {
+					String[][] newChunks = new String[chunk + 1][];
+					System.arraycopy(chunks, 0, newChunks, 0, chunks.length);
+					newChunks[chunk] = new String[CHUNK_SIZE];
+					chunks = newChunks;
+				}
+				chunks[chunk][newId & CHUNK_MASK] = beanName;
+				this.nameChunks = chunks;
+				this.dependents.ensureCapacity(newId);
+				this.dependencies.ensureCapacity(newId);
+				this.contained.ensureCapacity(newId);
+				this.containing.ensureCapacity(newId);
+				// 所有的表都准备好之后再发布编号
+				this.beanIds.put(beanName, newId);
+				id = newId;
+			}
+			return id;
+		}
+	}
+
+	/**
+	 * 返回bean name 的编号，没有则返回-1
+	 * 
+	 * @param beanName
+	 * @return
+	 */
+	private int idOf(String beanName) {
+		Integer id = this.beanIds.get(beanName);
+		return (id != null ? id : -1);
+	}
+
+	private String[] toNames(int[] ids) {
+		if (ids == null || ids[0] == 0) {
+			return EMPTY_NAMES;
+		}
+		String[][] chunks = this.nameChunks;
+		String[] names = new String[ids[0]];
+		for (int i = 0; i < names.length; i++) {
+			int id = ids[i + 1];
+			names[i] = chunks[id >>> CHUNK_SHIFT][id & CHUNK_MASK];
+		}
+		return names;
+	}
+
+	/**
+	 * 以int 编号为下标的邻接表。每一行是一个Row，按插入顺序保存相邻的编号。
+	 * 写一行时锁住这一行所在的分段
+	 */
+	private static class Adjacency {
+
+		private final Object[] stripes = new Object[STRIPES];
+
+		private volatile Row[][] rowChunks = new Row[0][];
+
+		Adjacency() {
+			for (int i = 0; i < STRIPES; i++) {
+				this.stripes[i] = new Object();
+			}
+		}
+
+		/**
+		 * 保证编号对应的分块已经分配，只在驻留新编号时调用
+		 * 
+		 * @param id
+		 */
+		void ensureCapacity(int id) {
+			int chunk = id >>> CHUNK_SHIFT;
+			Row[][] chunks = this.rowChunks;
+			if (chunk >= chunks.length) {
+				Row[][] newChunks = new Row[chunk + 1][];
+				System.arraycopy(chunks, 0, newChunks, 0, chunks.length);
+				newChunks[chunk] = new Row[CHUNK_SIZE];
+				this.rowChunks = newChunks;
+			}
+		}
+
+		void add(int from, int to) {
+			Row[] chunk = this.rowChunks[from >>> CHUNK_SHIFT];
+			int offset = from & CHUNK_MASK;
+			synchronized (this.stripes[from & (STRIPES - 1)]) {
+				Row row = chunk[offset];
+				if (row == null) {
+					row = new Row();
+					chunk[offset] = row;
+				}
+				row.add(to);
+			}
+		}
+
+		void removeEdge(int from, int to) {
+			Row[] chunk = this.rowChunks[from >>> CHUNK_SHIFT];
+			int offset = from & CHUNK_MASK;
+			synchronized (this.stripes[from & (STRIPES - 1)]) {
+				Row row = chunk[offset];
+				if (row != null && row.remove(to) && row.size == 0) {
+					chunk[offset] = null;
+				}
+			}
+		}
+
+		/**
+		 * 返回一行的拷贝：第0 个元素是边的个数，后面按插入顺序是相邻的编号。没有则返回null
+		 * 
+		 * @param id
+		 * @return
+		 */
+		int[] get(int id) {
+			if (id < 0) {
+				return null;
+			}
+			Row[] chunk = this.rowChunks[id >>> CHUNK_SHIFT];
+			synchronized (this.stripes[id & (STRIPES - 1)]) {
+				Row row = chunk[id & CHUNK_MASK];
+				return (row != null ? row.toArray() : null);
+			}
+		}
+
+		int size(int id) {
+			Row[] chunk = this.rowChunks[id >>> CHUNK_SHIFT];
+			synchronized (this.stripes[id & (STRIPES - 1)]) {
+				Row row = chunk[id & CHUNK_MASK];
+				return (row != null ? row.size : 0);
+			}
+		}
+
+		/**
+		 * 移除并返回一行，格式和get 一样，没有则返回null
+		 * 
+		 * @param id
+		 * @return
+		 */
+		int[] remove(int id) {
+			if (id < 0) {
+				return null;
+			}
+			Row[] chunk = this.rowChunks[id >>> CHUNK_SHIFT];
+			synchronized (this.stripes[id & (STRIPES - 1)]) {
+				int offset = id & CHUNK_MASK;
+				Row row = chunk[offset];
+				chunk[offset] = null;
+				return (row != null ? row.toArray() : null);
+			}
+		}
+
+		void clear() {
+			this.rowChunks = new Row[0][];
+		}
+	}
+
+	/**
+	 * 邻接表的一行：按插入顺序保存相邻的编号，移除的位置留下墓碑(-1)，墓碑超过一半时压缩。
+	 * 边多了之后(比如很多bean 依赖的DataSource)建一个 编号 --> 位置 的散列索引，查重 和 移除都是O(1)，
+	 * 注册 和 销毁一个bean 的代价和它的边的个数成正比
+	 */
+	private static final class Row {
+
+		/** 边超过这个个数时建索引，之前直接扫描 */
+		private static final int INDEX_THRESHOLD = 16;
+
+		private static final int TOMBSTONE = -1;
+
+		/** 相邻的编号，按插入顺序，移除的是墓碑 */
+		private int[] ids = new int[4];
+
+		/** ids 里用到的位置，包括墓碑 */
+		private int length = 0;
+
+		/** 边的个数 */
+		int size = 0;
+
+		/** 编号 --> 在ids 里的位置，边少时为null */
+		private IdIndex index;
+
+		void add(int id) {
+			if (indexOf(id) >= 0) {
+				return;
+			}
+			if (this.length == this.ids.length) {
+				if (this.size * 2 <= this.length) {
+					compact();
+				} else {
+					int[] newIds = new int[this.ids.length * 2];
+					System.arraycopy(this.ids, 0, newIds, 0, this.length);
+					this.ids = newIds;
+				}
+			}
+			if (this.index != null) {
+				this.index.put(id, this.length);
+			}
+			this.ids[this.length++] = id;
+			this.size++;
+			if (this.index == null && this.size > INDEX_THRESHOLD) {
+				buildIndex();
+			}
+		}
+
+		/**
+		 * 移除一条边
+		 * 
+		 * @param id
+		 * @return 是否有这条边
+		 */
+		boolean remove(int id) {
+			int position = indexOf(id);
+			if (position < 0) {
+				return false;
+			}
+			this.ids[position] = TOMBSTONE;
+			if (this.index != null) {
+				this.index.remove(id);
+			}
+			this.size--;
+			if (this.size > 0 && this.length > INDEX_THRESHOLD && this.size * 2 < this.length) {
+				compact();
+			}
+			return true;
+		}
+
+		int[] toArray() {
+			int[] result = new int[this.size + 1];
+			result[0] = this.size;
+			int count = 1;
+			for (int i = 0; i < this.length; i++) {
+				if (this.ids[i] != TOMBSTONE) {
+					result[count++] = this.ids[i];
+				}
+			}
+			return result;
+		}
+
+		private int indexOf(int id) {
+			if (this.index != null) {
+				return this.index.get(id);
+			}
+			for (int i = 0; i < this.length; i++) {
+				if (this.ids[i] == id) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * 去掉墓碑，保持顺序，重建索引
+		 */
+		private void compact() {
+			int count = 0;
+			for (int i = 0; i < this.length; i++) {
+				if (this.ids[i] != TOMBSTONE) {
+					this.ids[count++] = this.ids[i];
+				}
+			}
+			this.length = count;
+			if (this.index != null) {
+				buildIndex();
+			}
+		}
+
+		private void buildIndex() {
+			this.index = new IdIndex(this.size);
+			for (int i = 0; i < this.length; i++) {
+				if (this.ids[i] != TOMBSTONE) {
+					this.index.put(this.ids[i], i);
+				}
+			}
+		}
+	}
+
+	/**
+	 * 编号 --> 位置 的开放寻址散列表，线性探测，删除时往回移动后面的元素，不留墓碑
+	 */
+	private static final class IdIndex {
+
+		private static final int FREE = -1;
+
+		private int[] keys;
+
+		private int[] values;
+
+		private int count = 0;
+
+		IdIndex(int expectedSize) {
+			int capacity = 32;
+			while (capacity < expectedSize * 2) {
+				capacity <<= 1;
+			}
+			allocate(capacity);
+		}
+
+		int get(int key) {
+			int mask = this.keys.length - 1;
+			for (int slot = hash(key) & mask;; slot = (slot + 1) & mask) {
+				int candidate = this.keys[slot];
+				if (candidate == key) {
+					return this.values[slot];
+				}
+				if (candidate == FREE) {
+					return -1;
+				}
+			}
+		}
+
+		void put(int key, int value) {
+			if ((this.count + 1) * 2 > this.keys.length) {
+				int[] oldKeys = this.keys;
+				int[] oldValues = this.values;
+				allocate(oldKeys.length * 2);
+				for (int i = 0; i < oldKeys.length; i++) {
+					if (oldKeys[i] != FREE) {
+						insert(oldKeys[i], oldValues[i]);
+					}
+				}
+			}
+			insert(key, value);
+		}
+
+		void remove(int key) {
+			int mask = this.keys.length - 1;
+			int slot = hash(key) & mask;
+			while (this.keys[slot] != key) {
+				if (this.keys[slot] == FREE) {
+					return;
+				}
+				slot = (slot + 1) & mask;
+			}
+			this.count--;
+			// 把后面探测链上的元素往回移，填上空出来的位置
+			int gap = slot;
+			for (int next = (gap + 1) & mask; this.keys[next] != FREE; next = (next + 1) & mask) {
+				int home = hash(this.keys[next]) & mask;
+				if (((next - home) & mask) >= ((next - gap) & mask)) {
+					this.keys[gap] = this.keys[next];
+					this.values[gap] = this.values[next];
+					gap = next;
+				}
+			}
+			this.keys[gap] = FREE;
+		}
+
+		private void insert(int key, int value) {
+			int mask = this.keys.length - 1;
+			int slot = hash(key) & mask;
+			while (this.keys[slot] != FREE) {
+				if (this.keys[slot] == key) {
+					this.values[slot] = value;
+					return;
+				}
+				slot = (slot + 1) & mask;
+			}
+			this.keys[slot] = key;
+			this.values[slot] = value;
+			this.count++;
+		}
+
+		private void allocate(int capacity) {
+			this.keys = new int[capacity];
+			this.values = new int[capacity];
+			Arrays.fill(this.keys, FREE);
+			this.count = 0;
+		}
+
+		private static int hash(int key) {
+			int h = key * 0x9E3779B9;
+			return h ^ (h >>> 16);
+		}
+	}
+
+}
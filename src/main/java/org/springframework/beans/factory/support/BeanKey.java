@@ -0,0 +1,182 @@
+package org.springframework.beans.factory.support;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 驻留的bean name 解析结果<br>
+ * 一个调用方传进来的名字(可能带 "&" 前缀，可能是别名)对应一个BeanKey，记录解析好的规范bean name 和 是否是取FactoryBean 本身。
+ * 同一个bean 的所有名字共享规范名字对应的那个BeanKey 上的单例槽，已经创建完的单例直接从槽里取，不用再查单例缓存。<br>
+ * 每个名字还按所需的类型分别记着取到的最终对象(FactoryBean 生产的对象、已经检查过类型)，只在单例槽里还是同一个实例时有效，
+ * 所以单例被移除 或者 替换时它们也跟着作废。不指定类型 和 指定Object 类型的结果相同，共用一项
+ * 
+ * @author yanbin
+ * 
+ */
+final class BeanKey {
+
+	/** 调用方传进来的名字 */
+	private final String name;
+
+	/** 规范的bean name：去掉 "&" 前缀并解析别名 */
+	private final String beanName;
+
+	/** 是否是取FactoryBean 本身 */
+	private final boolean factoryDereference;
+
+	/** 规范bean name 对应的BeanKey，持有单例槽 */
+	private final BeanKey canonicalKey;
+
+	/** 已经完全创建好的单例实例，只在规范的BeanKey 上使用 */
+	private volatile Object singletonInstance;
+
+	/** 按类型取到的最终对象：所需的类型 --> 结果，第一次记录时才创建 */
+	private volatile ConcurrentMap<Class<?>, ResolvedLookup> resolvedLookups;
+
+	/**
+	 * 创建规范bean name 自己的BeanKey
+	 * 
+	 * @param beanName
+	 */
+	BeanKey(String beanName) {
+		this.name = beanName;
+		this.beanName = beanName;
+		this.factoryDereference = false;
+		this.canonicalKey = this;
+	}
+
+	/**
+	 * 创建一个别名 或者 带 "&" 前缀的名字的BeanKey
+	 * 
+	 * @param name
+	 * @param factoryDereference
+	 * @param canonicalKey
+	 */
+	BeanKey(String name, boolean factoryDereference, BeanKey canonicalKey) {
+		this.name = name;
+		this.beanName = canonicalKey.beanName;
+		this.factoryDereference = factoryDereference;
+		this.canonicalKey = canonicalKey;
+	}
+
+	public String getName() {
+		return this.name;
+	}
+
+	public String getBeanName() {
+		return this.beanName;
+	}
+
+	public boolean isFactoryDereference() {
+		return this.factoryDereference;
+	}
+
+	/**
+	 * 返回槽里缓存的单例，没有则返回null
+	 * 
+	 * @return
+	 */
+	Object getSingletonInstance() {
+		return this.canonicalKey.singletonInstance;
+	}
+
+	void setSingletonInstance(Object singletonInstance) {
+		this.canonicalKey.singletonInstance = singletonInstance;
+	}
+
+	/**
+	 * 只有槽里还是指定的实例时才清空
+	 * 
+	 * @param singletonInstance
+	 */
+	void clearSingletonInstance(Object singletonInstance) {
+		BeanKey key = this.canonicalKey;
+		synchronized (key) {
+			if (key.singletonInstance == singletonInstance) {
+				key.singletonInstance = null;
+			}
+		}
+	}
+
+	void clearSingletonInstance() {
+		this.canonicalKey.singletonInstance = null;
+	}
+
+	/**
+	 * 返回按这个类型取过的最终对象。单例槽里已经不是当时的实例 或者 类型不同时返回null
+	 * 
+	 * @param requiredType
+	 * @return
+	 */
+	Object getResolvedObject(Class<?> requiredType) {
+		ConcurrentMap<Class<?>, ResolvedLookup> lookups = this.resolvedLookups;
+		if (lookups == null) {
+			return null;
+		}
+		Class<?> key = lookupKey(requiredType);
+		ResolvedLookup lookup = lookups.get(key);
+		if (lookup == null) {
+			return null;
+		}
+		if (lookup.singletonInstance != this.canonicalKey.singletonInstance) {
+			// 单例已经被移除 或者 替换，丢掉这一项
+			lookups.remove(key, lookup);
+			return null;
+		}
+		return lookup.object;
+	}
+
+	/**
+	 * 记下按类型取到的最终对象
+	 * 
+	 * @param requiredType
+	 * @param singletonInstance
+	 *            单例槽里的实例
+	 * @param object
+	 *            最终返回给调用方的对象
+	 */
+	void setResolvedObject(Class<?> requiredType, Object singletonInstance, Object object) {
+		ConcurrentMap<Class<?>, ResolvedLookup> lookups = this.resolvedLookups;
+		if (lookups == null) {
+			synchronized (this) {
+				lookups = this.resolvedLookups;
+				if (lookups == null) {
+					lookups = new ConcurrentHashMap<Class<?>, ResolvedLookup>(4);
+					this.resolvedLookups = lookups;
+				}
+			}
+		}
+		lookups.put(lookupKey(requiredType), new ResolvedLookup(singletonInstance, object));
+	}
+
+	/**
+	 * 不指定类型时按Object 类型记录
+	 * 
+	 * @param requiredType
+	 * @return
+	 */
+	private static Class<?> lookupKey(Class<?> requiredType) {
+		return (requiredType != null ? requiredType : Object.class);
+	}
+
+	@Override
+	public String toString() {
+		return (this.factoryDereference ? "&" : "") + this.beanName;
+	}
+
+	/**
+	 * 一次按类型取bean 的结果，建好之后不再修改
+	 */
+	private static class ResolvedLookup {
+
+		final Object singletonInstance;
+
+		final Object object;
+
+		ResolvedLookup(Object singletonInstance, Object object) {
+			this.singletonInstance = singletonInstance;
+			this.object = object;
+		}
+	}
+
+}
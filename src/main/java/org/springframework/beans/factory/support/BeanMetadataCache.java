@@ -0,0 +1,180 @@
+package org.springframework.beans.factory.support;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * bean 元数据查询的缓存：getType、isTypeMatch、isSingleton、isPrototype、isFactoryBean 从bean definition 推算出来的结果<br>
+ * 按bean name 缓存预估的bean 类型、装饰的bean definition 的目标类型、是否是FactoryBean、作用域，以及按目标类型缓存的isTypeMatch 结果。
+ * 第一次查询时才填充；每一项绑定在merged bean definition 实例 和 后置处理器列表的版本上，
+ * bean definition 被重新merge、加入新的后置处理器 或者 单例变化时作废。<br>
+ * 只缓存从bean definition 推算的部分，已经存在的单例实例 和 FactoryBean 生产的对象的类型仍然每次现查
+ * 
+ * @author yanbin
+ * 
+ */
+public class BeanMetadataCache {
+
+	/** bean name --> 元数据 */
+	private final ConcurrentMap<String, BeanMetadata> metadata = new ConcurrentHashMap<String, BeanMetadata>(256);
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * 返回对应这个merged bean definition 的元数据，旧的作废时换一个新的
+	 * 
+	 * @param beanName
+	 * @param mbd
+	 * @param beanPostProcessorGeneration
+	 * @return
+	 */
+	BeanMetadata obtain(String beanName, RootBeanDefinition mbd, int beanPostProcessorGeneration) {
+		BeanMetadata current = this.metadata.get(beanName);
+		if (current != null && current.isValidFor(mbd, beanPostProcessorGeneration)) {
+			return current;
+		}
+		BeanMetadata newMetadata = new BeanMetadata(mbd, beanPostProcessorGeneration);
+		if (current != null) {
+			if (this.metadata.replace(beanName, current, newMetadata)) {
+				this.evictions.incrementAndGet();
+			}
+		} else {
+			BeanMetadata existing = this.metadata.putIfAbsent(beanName, newMetadata);
+			if (existing != null && existing.isValidFor(mbd, beanPostProcessorGeneration)) {
+				return existing;
+			}
+		}
+		return newMetadata;
+	}
+
+	/**
+	 * 作废指定bean 的元数据
+	 * 
+	 * @param beanName
+	 */
+	void remove(String beanName) {
+		if (this.metadata.remove(beanName) != null) {
+			this.evictions.incrementAndGet();
+		}
+	}
+
+	/**
+	 * 作废所有的元数据
+	 */
+	void clear() {
+		this.metadata.clear();
+	}
+
+	void recordHit() {
+		this.hits.incrementAndGet();
+	}
+
+	void recordMiss() {
+		this.misses.incrementAndGet();
+	}
+
+	public long getHitCount() {
+		return this.hits.get();
+	}
+
+	public long getMissCount() {
+		return this.misses.get();
+	}
+
+	/**
+	 * 返回因为bean definition 或者 单例变化作废的元数据的个数
+	 * 
+	 * @return
+	 */
+	public long getEvictionCount() {
+		return this.evictions.get();
+	}
+
+	/**
+	 * 返回命中率，还没有查询时返回0
+	 * 
+	 * @return
+	 */
+	public double getHitRatio() {
+		long hitCount = this.hits.get();
+		long total = hitCount + this.misses.get();
+		return (total > 0 ? (double) hitCount / total : 0);
+	}
+
+	public int size() {
+		return this.metadata.size();
+	}
+
+	/**
+	 * 重置命中和未命中的统计，缓存的元数据保留
+	 */
+	public void resetStatistics() {
+		this.hits.set(0);
+		this.misses.set(0);
+		this.evictions.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return "hits=" + getHitCount() + ", misses=" + getMissCount() + ", evictions=" + getEvictionCount()
+				+ ", entries=" + size();
+	}
+
+	/**
+	 * 一个bean 的元数据。类型的字段null 表示还没有算过，算出来是null 时存 NULL_TYPE
+	 */
+	static class BeanMetadata {
+
+		static final Object NULL_TYPE = new Object();
+
+		private final RootBeanDefinition mbd;
+
+		private final int beanPostProcessorGeneration;
+
+		/** 作用域 */
+		final boolean singleton;
+
+		final boolean prototype;
+
+		/** 预估的bean 类型 */
+		volatile Object predictedType;
+
+		/** 装饰的bean definition 的目标类型 */
+		volatile Object decoratedTargetType;
+
+		/** 是否是FactoryBean */
+		volatile Boolean factoryBean;
+
+		/** 目标类型 --> 按bean 自身查询的isTypeMatch 结果 */
+		private final ConcurrentMap<Class<?>, Boolean> typeMatches = new ConcurrentHashMap<Class<?>, Boolean>(4);
+
+		/** 目标类型 --> 按 &name 查询的isTypeMatch 结果 */
+		private final ConcurrentMap<Class<?>, Boolean> dereferenceTypeMatches = new ConcurrentHashMap<Class<?>, Boolean>(
+				4);
+
+		BeanMetadata(RootBeanDefinition mbd, int beanPostProcessorGeneration) {
+			this.mbd = mbd;
+			this.beanPostProcessorGeneration = beanPostProcessorGeneration;
+			this.singleton = mbd.isSingleton();
+			this.prototype = mbd.isPrototype();
+		}
+
+		boolean isValidFor(RootBeanDefinition mbd, int beanPostProcessorGeneration) {
+			return (this.mbd == mbd && this.beanPostProcessorGeneration == beanPostProcessorGeneration);
+		}
+
+		Boolean getTypeMatch(Class<?> typeToMatch, boolean factoryDereference) {
+			return (factoryDereference ? this.dereferenceTypeMatches : this.typeMatches).get(typeToMatch);
+		}
+
+		void setTypeMatch(Class<?> typeToMatch, boolean factoryDereference, boolean matches) {
+			(factoryDereference ? this.dereferenceTypeMatches : this.typeMatches).put(typeToMatch, matches);
+		}
+	}
+
+}
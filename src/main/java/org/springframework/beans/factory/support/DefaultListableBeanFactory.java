@@ -1,8 +1,23 @@
 package org.springframework.beans.factory.support;
 
 import java.io.Serializable;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
+import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.AsyncFactoryBean;
+import org.springframework.beans.factory.BeanFactory;
+import org.springframework.beans.factory.NoSuchBeanDefinitionException;
+import org.springframework.beans.factory.config.ConfigurableBeanFactory;
 import org.springframework.beans.factory.config.ConfigurableListableBeanFactory;
+import org.springframework.util.Assert;
+import org.springframework.util.StringUtils;
 
 /**
  * ListableBeanFactory和BeanDefinitionRegistry接口的默认实现：基于bean definition
@@ -17,4 +32,421 @@ import org.springframework.beans.factory.config.ConfigurableListableBeanFactory;
 public class DefaultListableBeanFactory extends AbstractAutowireCapableBeanFactory implements
 		ConfigurableListableBeanFactory, BeanDefinitionRegistry, Serializable {
 
+	/** 预实例化结束时，创建耗时报告里列出自身时间最长的bean 的个数 */
+	private static final int CREATION_TIMING_REPORT_SIZE = 10;
+
+	/** 是否允许同名的bean definition 覆盖 */
+	private boolean allowBeanDefinitionOverriding = true;
+
+	/** bean definition 的缓存 bean name --> bean definition */
+	private final Map<String, BeanDefinition> beanDefinitionMap = new ConcurrentHashMap<String, BeanDefinition>(64);
+
+	/** bean definition 的名字，按注册的顺序 */
+	private final List<String> beanDefinitionNames = new ArrayList<String>();
+
+	/** 是否冻结了bean definition 的元数据 */
+	private boolean configurationFrozen = false;
+
+	/** 冻结时缓存的bean definition 名字 */
+	private String[] frozenBeanDefinitionNames;
+
+	/** 是否并行的预实例化单例 */
+	private boolean parallelPreInstantiation = false;
+
+	/** 并行预实例化单例时的并行度 */
+	private int preInstantiationParallelism = Runtime.getRuntime().availableProcessors();
+
+	/** 冻结配置时是否预先merge 所有的bean definition */
+	private boolean preMergeOnFreeze = false;
+
+	public DefaultListableBeanFactory() {
+		super();
+	}
+
+	public DefaultListableBeanFactory(BeanFactory parentBeanFactory) {
+		super(parentBeanFactory);
+	}
+
+	/**
+	 * 设置是否允许同名的bean definition 覆盖
+	 * 
+	 * @param allowBeanDefinitionOverriding
+	 */
+	public void setAllowBeanDefinitionOverriding(boolean allowBeanDefinitionOverriding) {
+		this.allowBeanDefinitionOverriding = allowBeanDefinitionOverriding;
+	}
+
+	/**
+	 * 设置是否并行的预实例化单例。打开后，preInstantiateSingletons 会按依赖关系图把互不依赖的单例放到多个线程里同时创建，
+	 * 依赖图里有环的时候退回到顺序创建
+	 * 
+	 * @param parallelPreInstantiation
+	 */
+	public void setParallelPreInstantiation(boolean parallelPreInstantiation) {
+		this.parallelPreInstantiation = parallelPreInstantiation;
+	}
+
+	public boolean isParallelPreInstantiation() {
+		return this.parallelPreInstantiation;
+	}
+
+	/**
+	 * 设置并行预实例化单例时的并行度，默认是cpu 的个数
+	 * 
+	 * @param preInstantiationParallelism
+	 */
+	public void setPreInstantiationParallelism(int preInstantiationParallelism) {
+		if (preInstantiationParallelism < 1) {
+			throw new IllegalArgumentException("Pre-instantiation parallelism must be at least 1");
+		}
+		this.preInstantiationParallelism = preInstantiationParallelism;
+	}
+
+	public int getPreInstantiationParallelism() {
+		return this.preInstantiationParallelism;
+	}
+
+	/**
+	 * 设置冻结配置时是否预先merge 所有的bean definition。打开后，freezeConfiguration 会按预实例化的并行度
+	 * 同时merge 所有的bean definition、解析bean class 并做检查，之后创建bean 时不会再merge；
+	 * 出错的bean definition 全部做完之后一起报告
+	 * 
+	 * @param preMergeOnFreeze
+	 */
+	public void setPreMergeOnFreeze(boolean preMergeOnFreeze) {
+		this.preMergeOnFreeze = preMergeOnFreeze;
+	}
+
+	public boolean isPreMergeOnFreeze() {
+		return this.preMergeOnFreeze;
+	}
+
+	@Override
+	public void copyConfigurationFrom(ConfigurableBeanFactory otherFactory) {
+		super.copyConfigurationFrom(otherFactory);
+		if (otherFactory instanceof DefaultListableBeanFactory) {
+			DefaultListableBeanFactory otherListableFactory = (DefaultListableBeanFactory) otherFactory;
+			this.allowBeanDefinitionOverriding = otherListableFactory.allowBeanDefinitionOverriding;
+			this.parallelPreInstantiation = otherListableFactory.parallelPreInstantiation;
+			this.preInstantiationParallelism = otherListableFactory.preInstantiationParallelism;
+			this.preMergeOnFreeze = otherListableFactory.preMergeOnFreeze;
+		}
+	}
+
+	// ---------------------------------------------------------------------
+	// Implementation of ListableBeanFactory interface
+	// ---------------------------------------------------------------------
+
+	@Override
+	public boolean containsBeanDefinition(String beanName) {
+		Assert.notNull(beanName, "Bean name must not be null");
+		return this.beanDefinitionMap.containsKey(beanName);
+	}
+
+	@Override
+	public int getBeanDefinitionCount() {
+		return this.beanDefinitionMap.size();
+	}
+
+	@Override
+	public String[] getBeanDefinitionNames() {
+		synchronized (this.beanDefinitionMap) {
+			if (this.frozenBeanDefinitionNames != null) {
+				return this.frozenBeanDefinitionNames;
+			} else {
+				return StringUtils.toStringArray(this.beanDefinitionNames);
+			}
+		}
+	}
+
+	// ---------------------------------------------------------------------
+	// Implementation of ConfigurableListableBeanFactory interface
+	// ---------------------------------------------------------------------
+
+	@Override
+	public BeanDefinition getBeanDefinition(String beanName) throws NoSuchBeanDefinitionException {
+		BeanDefinition bd = this.beanDefinitionMap.get(beanName);
+		if (bd == null) {
+			if (logger.isTraceEnabled()) {
+				logger.trace("No bean named '" + beanName + "' found in " + this);
+			}
+			throw new NoSuchBeanDefinitionException(beanName);
+		}
+		return bd;
+	}
+
+	@Override
+	public void freezeConfiguration() {
+		this.configurationFrozen = true;
+		synchronized (this.beanDefinitionMap) {
+			this.frozenBeanDefinitionNames = StringUtils.toStringArray(this.beanDefinitionNames);
+		}
+		// 冻结之后所有的merge 结果都会被缓存
+		if (this.preMergeOnFreeze) {
+			new ParallelBeanDefinitionMerger(this, this.frozenBeanDefinitionNames, this.preInstantiationParallelism)
+					.mergeAll();
+		}
+	}
+
+	@Override
+	public boolean isConfigurationFrozen() {
+		return this.configurationFrozen;
+	}
+
+	/**
+	 * 冻结了配置之后，所有的bean definition 都可以缓存merged 的结果
+	 */
+	@Override
+	protected boolean isBeanEligibleForMetadataCaching(String beanName) {
+		return (this.configurationFrozen || super.isBeanEligibleForMetadataCaching(beanName));
+	}
+
+	@Override
+	public void preInstantiateSingletons() throws BeansException {
+		if (logger.isInfoEnabled()) {
+			logger.info("Pre-instantiating singletons in " + this);
+		}
+		List<String> beanNames = new ArrayList<String>();
+		synchronized (this.beanDefinitionMap) {
+			for (String beanName : this.beanDefinitionNames) {
+				RootBeanDefinition bd = getMergedLocalBeanDefinition(beanName);
+				// 只有非抽象的、单例的、非延迟加载的bean 才需要预实例化
+				if (!bd.isAbstract() && bd.isSingleton() && !bd.isLazyInit()) {
+					beanNames.add(beanName);
+				}
+			}
+		}
+		startAsyncFactoryBeans(beanNames);
+		if (this.parallelPreInstantiation && this.preInstantiationParallelism > 1 && beanNames.size() > 1) {
+			new ParallelSingletonPreInstantiator(this, beanNames, this.preInstantiationParallelism).preInstantiate();
+		} else {
+			preInstantiateSingletonsSequentially(beanNames);
+		}
+		// 配置已经冻结，单例基本不会再变化，换成只读的单例表
+		if (isConfigurationFrozen()) {
+			freezeSingletons();
+		}
+		if (isRecordCreationTimings() && logger.isInfoEnabled()) {
+			logger.info(getCreationTimingReport(CREATION_TIMING_REPORT_SIZE));
+		}
+	}
+
+	/**
+	 * 先创建所有的单例AsyncFactoryBean 并启动它们在后台生产对象，其他的bean 接着创建，真正用到这些对象时才等待
+	 * 
+	 * @param beanNames
+	 */
+	private void startAsyncFactoryBeans(List<String> beanNames) {
+		for (String beanName : beanNames) {
+			if (isFactoryBean(beanName)) {
+				Class<?> factoryType = getType(FACTORY_BEAN_PREFIX + beanName);
+				if (factoryType != null && AsyncFactoryBean.class.isAssignableFrom(factoryType)) {
+					Object factory = getBean(FACTORY_BEAN_PREFIX + beanName);
+					if (factory instanceof AsyncFactoryBean && ((AsyncFactoryBean<?>) factory).isSingleton()) {
+						if (logger.isDebugEnabled()) {
+							logger.debug("Starting asynchronous object creation of AsyncFactoryBean '" + beanName + "'");
+						}
+						startAsyncFactoryBean(beanName, (AsyncFactoryBean<?>) factory);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * 预先merge 一个bean definition：merge 并缓存结果，非抽象的再解析bean class 并做检查
+	 * 
+	 * @param beanName
+	 * @throws BeansException
+	 */
+	void preMergeBeanDefinition(String beanName) throws BeansException {
+		RootBeanDefinition mbd = getMergedLocalBeanDefinition(beanName);
+		if (!mbd.isAbstract()) {
+			resolveBeanClass(mbd, beanName);
+			checkMergedBeanDefinition(mbd, beanName, null);
+		}
+	}
+
+	/**
+	 * 在当前线程里按注册顺序一个一个的预实例化单例
+	 * 
+	 * @param beanNames
+	 */
+	void preInstantiateSingletonsSequentially(List<String> beanNames) {
+		for (String beanName : beanNames) {
+			preInstantiateSingleton(beanName);
+		}
+	}
+
+	/**
+	 * 预实例化一个单例。FactoryBean 只在它是 SmartFactoryBean 且要求提前初始化的时候，才创建它生产的对象
+	 * 
+	 * @param beanName
+	 */
+	void preInstantiateSingleton(String beanName) {
+		if (isFactoryBean(beanName)) {
+			final FactoryBean<?> factory = (FactoryBean<?>) getBean(FACTORY_BEAN_PREFIX + beanName);
+			boolean isEagerInit;
+			if (System.getSecurityManager() != null && factory instanceof SmartFactoryBean) {
+				isEagerInit = AccessController.doPrivileged(new PrivilegedAction<Boolean>() {
+					public Boolean run() {
+						return ((SmartFactoryBean<?>) factory).isEagerInit();
+					}
+				}, getAccessControlContext());
+			} else {
+				isEagerInit = (factory instanceof SmartFactoryBean && ((SmartFactoryBean<?>) factory).isEagerInit());
+			}
+			if (isEagerInit) {
+				getBean(beanName);
+			}
+		} else {
+			getBean(beanName);
+		}
+	}
+
+	/**
+	 * 收集一个单例在创建之前必须先创建好的bean：depends-on、构造参数和属性里引用的bean、factory-bean，
+	 * 以及已经注册的依赖关系里的依赖。返回的都是规范的bean name
+	 * 
+	 * @param beanName
+	 * @return
+	 */
+	Set<String> getPreInstantiationDependencies(String beanName) {
+		Set<String> dependencies = new LinkedHashSet<String>();
+		RootBeanDefinition mbd = getMergedLocalBeanDefinition(beanName);
+		String[] dependsOn = mbd.getDependsOn();
+		if (dependsOn != null) {
+			for (String dependsOnBean : dependsOn) {
+				dependencies.add(transformedBeanName(dependsOnBean));
+			}
+		}
+		if (mbd.getFactoryBeanName() != null) {
+			dependencies.add(transformedBeanName(mbd.getFactoryBeanName()));
+		}
+		if (mbd.hasConstructorArgumentValues()) {
+			ConstructorArgumentValues cargs = mbd.getConstructorArgumentValues();
+			for (ConstructorArgumentValues.ValueHolder valueHolder : cargs.getIndexedArgumentValues().values()) {
+				addReferencedBeanName(valueHolder.getValue(), dependencies);
+			}
+			for (ConstructorArgumentValues.ValueHolder valueHolder : cargs.getGenericArgumentValues()) {
+				addReferencedBeanName(valueHolder.getValue(), dependencies);
+			}
+		}
+		for (PropertyValue pv : mbd.getPropertyValues().getPropertyValues()) {
+			addReferencedBeanName(pv.getValue(), dependencies);
+		}
+		for (String dependency : getDependenciesForBean(beanName)) {
+			dependencies.add(dependency);
+		}
+		dependencies.remove(beanName);
+		return dependencies;
+	}
+
+	/**
+	 * 如果值是一个bean 的引用，则把引用的bean name 加入到集合中
+	 * 
+	 * @param value
+	 * @param beanNames
+	 */
+	private void addReferencedBeanName(Object value, Set<String> beanNames) {
+		if (value instanceof BeanReference) {
+			beanNames.add(transformedBeanName(((BeanReference) value).getBeanName()));
+		}
+	}
+
+	// ---------------------------------------------------------------------
+	// Implementation of BeanDefinitionRegistry interface
+	// ---------------------------------------------------------------------
+
+	@Override
+	public void registerBeanDefinition(String beanName, BeanDefinition beanDefinition)
+			throws BeanDefinitionStoreException {
+		Assert.notNull(beanName, "Bean name must not be null");
+		Assert.notNull(beanDefinition, "BeanDefinition must not be null");
+
+		if (beanDefinition instanceof AbstractBeanDefinition) {
+			try {
+				((AbstractBeanDefinition) beanDefinition).validate();
+			} catch (BeanDefinitionValidationException ex) {
+				throw new BeanDefinitionStoreException(beanDefinition.getResourceDescription(), beanName,
+						"Validation of bean definition failed", ex);
+			}
+		}
+
+		synchronized (this.beanDefinitionMap) {
+			Object oldBeanDefinition = this.beanDefinitionMap.get(beanName);
+			if (oldBeanDefinition != null) {
+				if (!this.allowBeanDefinitionOverriding) {
+					throw new BeanDefinitionStoreException(beanDefinition.getResourceDescription(), beanName,
+							"Cannot register bean definition [" + beanDefinition + "] for bean '" + beanName
+									+ "': There is already [" + oldBeanDefinition + "] bound.");
+				} else {
+					if (logger.isInfoEnabled()) {
+						logger.info("Overriding bean definition for bean '" + beanName + "': replacing ["
+								+ oldBeanDefinition + "] with [" + beanDefinition + "]");
+					}
+				}
+			} else {
+				this.beanDefinitionNames.add(beanName);
+				this.frozenBeanDefinitionNames = null;
+			}
+			this.beanDefinitionMap.put(beanName, beanDefinition);
+		}
+
+		resetBeanDefinition(beanName);
+	}
+
+	@Override
+	public void removeBeanDefinition(String beanName) throws NoSuchBeanDefinitionException {
+		Assert.notNull(beanName, "Bean name must not be null");
+
+		synchronized (this.beanDefinitionMap) {
+			BeanDefinition bd = this.beanDefinitionMap.remove(beanName);
+			if (bd == null) {
+				if (logger.isTraceEnabled()) {
+					logger.trace("No bean named '" + beanName + "' found in " + this);
+				}
+				throw new NoSuchBeanDefinitionException(beanName);
+			}
+			this.beanDefinitionNames.remove(beanName);
+			this.frozenBeanDefinitionNames = null;
+		}
+
+		resetBeanDefinition(beanName);
+	}
+
+	/**
+	 * 重置指定bean 的所有缓存：merged 的bean definition 和 已经创建的单例，
+	 * 然后对所有以它为parent 的bean definition 做同样的处理
+	 * 
+	 * @param beanName
+	 */
+	protected void resetBeanDefinition(String beanName) {
+		// 移除merged 的bean definition
+		clearMergedBeanDefinition(beanName);
+
+		// 作废驻留的bean name 解析结果
+		clearBeanKeyCache();
+
+		// 作废缓存的FactoryBean 生产的对象的类型
+		clearFactoryBeanObjectType(beanName);
+
+		// 如果已经创建了单例，则销毁它
+		long lockRequestTime = lockRequested();
+		synchronized (getSingletonMutex()) {
+			lockAcquired(LockContentionMonitor.SINGLETON_MUTEX, lockRequestTime);
+			destroySingleton(beanName);
+		}
+
+		// 重置所有以它为parent 的bean definition
+		for (String bdName : this.beanDefinitionNames) {
+			if (!beanName.equals(bdName)) {
+				BeanDefinition bd = this.beanDefinitionMap.get(bdName);
+				if (bd != null && beanName.equals(bd.getParentName())) {
+					resetBeanDefinition(bdName);
+				}
+			}
+		}
+	}
+
 }
@@ -1,20 +1,36 @@
 package org.springframework.beans.factory.support;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.naming.spi.ObjectFactory;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.springframework.beans.factory.config.SingletonBeanRegistry;
+import org.springframework.core.NamedThreadLocal;
 import org.springframework.util.Assert;
 import org.springframework.util.StringUtils;
 
@@ -29,6 +45,9 @@ public class DefaultSingletonBeanRegistry extends SimpleAliasRegistry implements
 
 	protected static final Object NULL_OBJECT = new Object();
 
+	/** 等待别的线程创建单例时，每隔多久检查一次是否死锁，单位毫秒 */
+	private static final long CREATION_DEADLOCK_CHECK_INTERVAL = 50;
+
 	/** 对子类都可以使用的有效的日志 */
 	protected final Log logger = LogFactory.getLog(getClass());
 
@@ -36,42 +55,315 @@ public class DefaultSingletonBeanRegistry extends SimpleAliasRegistry implements
 	private final Map<String, Object> singletonObjects = new ConcurrentHashMap<String, Object>();
 
 	/** 缓存单例工厂 bean name --> factories */
-	private final Map<String, ObjectFactory> singletonFactories = new HashMap<String, ObjectFactory>();
+	private final Map<String, ObjectFactory> singletonFactories = new ConcurrentHashMap<String, ObjectFactory>(16);
 
 	/** 缓存早期的单例对象，bean name --> bean instance */
-	private final Map<String, Object> earlySingletonObjects = new HashMap<String, Object>();
+	private final ConcurrentMap<String, Object> earlySingletonObjects = new ConcurrentHashMap<String, Object>(16);
+
+	/** 正在把单例工厂提升成早期单例的bean： bean name --> 提升中的标记 */
+	private final ConcurrentMap<String, SingletonFactoryPromotion> singletonFactoryPromotions = new ConcurrentHashMap<String, SingletonFactoryPromotion>(
+			16);
 
 	/** 存放 已经注册的单例， 存放的是bean names 按注册的顺序 */
 	private final Set<String> registeredSingletons = new LinkedHashSet<String>(16);
 
-	/** 缓存正在创建的bean的bean name */
-	private final Set<String> singletonsCurrentlyInCreation = Collections.synchronizedSet(new HashSet<String>());
+	/** 缓存正在创建的bean的bean name --> 正在创建它的线程 */
+	private final ConcurrentMap<String, Thread> singletonsCurrentlyInCreation = new ConcurrentHashMap<String, Thread>(16);
 
 	/** 缓存当前在创建过程中通过检查，被排除的bean name */
-	private final Set<String> inCreationCheckExclusions = new HashSet<String>();
+	private final Set<String> inCreationCheckExclusions = Collections
+			.newSetFromMap(new ConcurrentHashMap<String, Boolean>(16));
+
+	/** 正在等待别的线程创建单例的线程 thread --> 它在等待的bean name，和上面的map 一起组成等待图 */
+	private final ConcurrentMap<Thread, String> singletonsAwaitedByThread = new ConcurrentHashMap<Thread, String>(16);
+
+	/** 发现跨线程的创建死锁时，是否把早期引用交给其中一方来解开，否则直接失败 */
+	private volatile boolean resolveCreationDeadlockWithEarlyReference = true;
 
-	/** 抑制异常集合 */
-	private Set<Exception> suppressedExceptions;
+	/** 每个bean name 一把创建锁，不同的单例可以并发创建 bean name --> lock */
+	private final ConcurrentMap<String, ReentrantLock> singletonCreationLocks = new ConcurrentHashMap<String, ReentrantLock>(
+			64);
+
+	/** 抑制异常集合，每个创建线程各自一份 */
+	private final ThreadLocal<Set<Exception>> suppressedExceptions = new NamedThreadLocal<Set<Exception>>(
+			"Suppressed exceptions during singleton creation");
+
+	/** 当前线程是否在销毁线程池里执行销毁，这样的线程里的DisposableBean 回调直接执行 */
+	private final ThreadLocal<Boolean> inDestructionThread = new NamedThreadLocal<Boolean>(
+			"Singleton destruction in destruction executor");
+
+	/** 启动完成后冻结的只读单例表，单例有变化时置为null，回到上面的可变缓存 */
+	private volatile FrozenSingletonTable frozenSingletons;
 
 	/** 标志当前的单例bean 是否是在 当前销毁中 */
-	private boolean singletonsCurrentlyInDestruction = false;
+	private volatile boolean singletonsCurrentlyInDestruction = false;
 
 	/** 可自由使用的 bean beanname --> instance */
 	private final Map<String, Object> disposableBeans = new LinkedHashMap<String, Object>();
 
-	/** bean包含下的bean bean name --> Set 对应bean包含下的所有bean name */
-	private final Map<String, Set<String>> containedBeanMap = new ConcurrentHashMap<String, Set<String>>();
+	/**
+	 * bean 之间的依赖关系图：bean 包含下的bean、依赖bean 的bean(存子)、被bean 依赖的bean(存父)。
+	 * bean name 驻留成int 编号，邻接表是int 数组
+	 */
+	private final BeanDependencyGraph dependencyGraph = new BeanDependencyGraph();
+
+	/** 是否按依赖关系并行的销毁单例 */
+	private boolean parallelDestruction = false;
+
+	/** 并行销毁单例时的并行度 */
+	private int destructionParallelism = Runtime.getRuntime().availableProcessors();
+
+	/** 并行销毁时每个bean 的销毁期限，单位毫秒，0 表示不限制 */
+	private long beanDestructionTimeout = 0;
+
+	/** 并行销毁时全部单例的销毁期限，单位毫秒，0 表示不限制 */
+	private long totalDestructionTimeout = 0;
+
+	/** 执行DisposableBean 回调的线程池，由调用方管理 */
+	private ExecutorService destructionExecutor;
+
+	/** 替换单例之后，旧实例延迟多久再销毁，单位毫秒，0 表示立即销毁 */
+	private long replacedSingletonGracePeriod = 0;
 
-	/** bean 缓存所有依赖的bean 及其依赖 已知bean --> Set 存的是被依赖的bean 存子 */
-	private final Map<String, Set<String>> dependentBeanMap = new ConcurrentHashMap<String, Set<String>>();
+	/** 可回收的单例 bean name --> 访问记录，回收之后记录保留，重建时计数 */
+	private final ConcurrentMap<String, EvictableSingleton> evictableSingletons = new ConcurrentHashMap<String, EvictableSingleton>(
+			16);
+
+	/** 同时存在的可回收单例的最大个数，超出时回收最久没有访问的，0 表示不限制 */
+	private int maxEvictableSingletons = 0;
+
+	/** 可回收单例多久没有访问就回收，单位毫秒，0 表示不按空闲时间回收 */
+	private long evictableSingletonIdleTimeout = 0;
+
+	/** 是否已经安排了定期的空闲回收 */
+	private boolean evictionSweepScheduled = false;
+
+	/** 回收的次数 */
+	private final AtomicLong singletonEvictionCount = new AtomicLong();
+
+	/** 回收之后重建的次数 */
+	private final AtomicLong singletonRecreationCount = new AtomicLong();
+
+	/** 单例的后台维护线程：延迟销毁被替换的旧实例、定期回收空闲的单例，第一次需要时才创建 */
+	private ScheduledExecutorService singletonMaintenanceScheduler;
+
+	/** 锁竞争的统计，没有打开时为null */
+	private volatile LockContentionMonitor lockContentionMonitor;
+
+	/**
+	 * 设置是否按依赖关系并行的销毁单例。打开后，destroySingletons 会先销毁依赖别人的bean，
+	 * 互不依赖的bean 放到多个线程里同时销毁
+	 * 
+	 * @param parallelDestruction
+	 */
+	public void setParallelDestruction(boolean parallelDestruction) {
+		this.parallelDestruction = parallelDestruction;
+	}
+
+	public boolean isParallelDestruction() {
+		return this.parallelDestruction;
+	}
 
-	/** bean 缓存所有被依赖的bean 已知被依赖bean --> Set 存的是依赖的bean 存父 */
-	private final Map<String, Set<String>> dependenciesForBeanMap = new ConcurrentHashMap<String, Set<String>>();
+	/**
+	 * 设置并行销毁单例时的并行度，默认是cpu 的个数
+	 * 
+	 * @param destructionParallelism
+	 */
+	public void setDestructionParallelism(int destructionParallelism) {
+		if (destructionParallelism < 1) {
+			throw new IllegalArgumentException("Destruction parallelism must be at least 1");
+		}
+		this.destructionParallelism = destructionParallelism;
+	}
+
+	public int getDestructionParallelism() {
+		return this.destructionParallelism;
+	}
+
+	/**
+	 * 设置执行DisposableBean 回调的线程池。设置之后 destroySingletons 按依赖关系把可以同时销毁的bean 提交到这个线程池，
+	 * 用Future 跟踪每个回调：超过 beanDestructionTimeout 的回调被取消(中断)，按名字报告，销毁继续往下走；
+	 * 超过 totalDestructionTimeout 后不再等待。单独销毁一个bean 时它的回调也在这个线程池里执行，同样有期限。<br>
+	 * 线程池由调用方管理，容器不会关闭它
+	 * 
+	 * @param destructionExecutor
+	 */
+	public void setDestructionExecutor(ExecutorService destructionExecutor) {
+		this.destructionExecutor = destructionExecutor;
+	}
+
+	public ExecutorService getDestructionExecutor() {
+		return this.destructionExecutor;
+	}
+
+	/**
+	 * 设置并行销毁 或者 使用销毁线程池时每个bean 的销毁期限，单位毫秒。超过期限的bean 会打警告日志，销毁继续往下走。0 表示不限制
+	 * 
+	 * @param beanDestructionTimeout
+	 */
+	public void setBeanDestructionTimeout(long beanDestructionTimeout) {
+		this.beanDestructionTimeout = beanDestructionTimeout;
+	}
+
+	public long getBeanDestructionTimeout() {
+		return this.beanDestructionTimeout;
+	}
+
+	/**
+	 * 设置并行销毁时全部单例的销毁期限，单位毫秒。超过期限后不再等待还没有销毁完的bean。0 表示不限制
+	 * 
+	 * @param totalDestructionTimeout
+	 */
+	public void setTotalDestructionTimeout(long totalDestructionTimeout) {
+		this.totalDestructionTimeout = totalDestructionTimeout;
+	}
+
+	public long getTotalDestructionTimeout() {
+		return this.totalDestructionTimeout;
+	}
+
+	/**
+	 * 设置替换单例之后，旧实例的DisposableBean 延迟多久再销毁，单位毫秒。还在使用旧实例的调用在这段时间里可以正常结束。0 表示立即销毁
+	 * 
+	 * @param replacedSingletonGracePeriod
+	 */
+	public void setReplacedSingletonGracePeriod(long replacedSingletonGracePeriod) {
+		this.replacedSingletonGracePeriod = replacedSingletonGracePeriod;
+	}
+
+	public long getReplacedSingletonGracePeriod() {
+		return this.replacedSingletonGracePeriod;
+	}
+
+	/**
+	 * 设置同时存在的可回收单例的最大个数，超出时回收最久没有访问的。0 表示不限制
+	 * 
+	 * @param maxEvictableSingletons
+	 */
+	public void setMaxEvictableSingletons(int maxEvictableSingletons) {
+		this.maxEvictableSingletons = maxEvictableSingletons;
+	}
+
+	public int getMaxEvictableSingletons() {
+		return this.maxEvictableSingletons;
+	}
+
+	/**
+	 * 设置可回收单例多久没有访问就回收，单位毫秒。大于0 时会在后台定期检查。0 表示不按空闲时间回收
+	 * 
+	 * @param evictableSingletonIdleTimeout
+	 */
+	public void setEvictableSingletonIdleTimeout(long evictableSingletonIdleTimeout) {
+		this.evictableSingletonIdleTimeout = evictableSingletonIdleTimeout;
+	}
+
+	public long getEvictableSingletonIdleTimeout() {
+		return this.evictableSingletonIdleTimeout;
+	}
+
+	/**
+	 * 返回可回收单例被回收的总次数
+	 * 
+	 * @return
+	 */
+	public long getSingletonEvictionCount() {
+		return this.singletonEvictionCount.get();
+	}
+
+	/**
+	 * 返回可回收单例被回收之后又重新创建的总次数
+	 * 
+	 * @return
+	 */
+	public long getSingletonRecreationCount() {
+		return this.singletonRecreationCount.get();
+	}
+
+	/**
+	 * 设置发现跨线程的创建死锁(线程1 创建A 等B，线程2 创建B 等A)时，是否把对方已经暴露的早期引用交给当前线程来解开死锁。
+	 * 关闭 或者 对方没有早期引用(比如构造器注入) 时，抛出 BeanCurrentlyInCreationException，列出整条等待链
+	 * 
+	 * @param resolveCreationDeadlockWithEarlyReference
+	 */
+	public void setResolveCreationDeadlockWithEarlyReference(boolean resolveCreationDeadlockWithEarlyReference) {
+		this.resolveCreationDeadlockWithEarlyReference = resolveCreationDeadlockWithEarlyReference;
+	}
+
+	public boolean isResolveCreationDeadlockWithEarlyReference() {
+		return this.resolveCreationDeadlockWithEarlyReference;
+	}
+
+	/**
+	 * 设置是否统计单例缓存、创建锁、disposableBeans 和 bean 定义缓存这些锁的竞争情况。默认关闭，关闭时每次加锁只多一次null 判断。<br>
+	 * 打开后可以通过 getLockContentionMonitor() 拿到统计，它是一个标准MBean，可以用
+	 * ManagementFactory.getPlatformMBeanServer().registerMBean(monitor, objectName) 注册到JMX 上
+	 * 
+	 * @param lockContentionMonitoring
+	 */
+	public void setLockContentionMonitoring(boolean lockContentionMonitoring) {
+		if (!lockContentionMonitoring) {
+			this.lockContentionMonitor = null;
+		} else if (this.lockContentionMonitor == null) {
+			this.lockContentionMonitor = new LockContentionMonitor();
+		}
+	}
+
+	public boolean isLockContentionMonitoring() {
+		return (this.lockContentionMonitor != null);
+	}
+
+	/**
+	 * 返回锁竞争的统计，没有打开时返回null
+	 * 
+	 * @return
+	 */
+	public LockContentionMonitor getLockContentionMonitor() {
+		return this.lockContentionMonitor;
+	}
+
+	/**
+	 * 准备获取一个监视器锁：打开了锁竞争统计时返回当前时间，否则返回0
+	 * 
+	 * @return
+	 */
+	protected final long lockRequested() {
+		return (this.lockContentionMonitor != null ? System.nanoTime() : 0);
+	}
+
+	/**
+	 * 拿到了一个监视器锁，按等待的时间记录一次获取
+	 * 
+	 * @param lockName
+	 * @param lockRequestTime
+	 *            lockRequested() 的返回值
+	 */
+	protected final void lockAcquired(String lockName, long lockRequestTime) {
+		LockContentionMonitor monitor = this.lockContentionMonitor;
+		if (monitor != null && lockRequestTime != 0) {
+			monitor.recordMonitorAcquisition(lockName, System.nanoTime() - lockRequestTime);
+		}
+	}
+
+	/**
+	 * 拿到了一个ReentrantLock，是否竞争由调用方用 tryLock 判断
+	 * 
+	 * @param lockName
+	 * @param waitNanos
+	 * @param contended
+	 */
+	protected final void lockAcquired(String lockName, long waitNanos, boolean contended) {
+		LockContentionMonitor monitor = this.lockContentionMonitor;
+		if (monitor != null) {
+			monitor.recordAcquisition(lockName, waitNanos, contended);
+		}
+	}
 
 	@Override
 	public void registerSingleton(String beanName, Object singletonObject) throws IllegalStateException {
 		Assert.notNull(beanName, "'beanName' must not be null");
+		long lockRequestTime = lockRequested();
 		synchronized (this.singletonObjects) {
+			lockAcquired(LockContentionMonitor.SINGLETON_MUTEX, lockRequestTime);
 			Object oldObject = this.singletonObjects.get(beanName);
 			if (oldObject != null) {
 				throw new IllegalStateException("Could not register object [" + singletonObject + "] under bean name '"
@@ -81,6 +373,265 @@ public class DefaultSingletonBeanRegistry extends SimpleAliasRegistry implements
 		}
 	}
 
+	/**
+	 * 用新的实例原子的替换一个已经存在的单例。读取方不会被阻塞，拿到的不是旧实例就是新实例，中间不会拿到null。<br>
+	 * 旧实例注册过的DisposableBean 在 replacedSingletonGracePeriod 之后销毁；新实例如果实现了DisposableBean，
+	 * 会在原来的销毁顺序上注册。已经注入了旧实例的bean 不会被更新，返回它们的名字，由调用方重新装配
+	 * 
+	 * @param beanName
+	 * @param newInstance
+	 * @return 依赖这个单例的bean name
+	 * @throws IllegalStateException
+	 *             这个单例还不存在，或者正在销毁所有的单例
+	 */
+	public String[] replaceSingleton(String beanName, Object newInstance) throws IllegalStateException {
+		Assert.notNull(beanName, "'beanName' must not be null");
+		Assert.notNull(newInstance, "'newInstance' must not be null");
+		Object oldInstance;
+		Object oldDisposableBean;
+		ReentrantLock creationLock = getSingletonCreationLock(beanName);
+		creationLock.lock();
+		try {
+			long lockRequestTime = lockRequested();
+			synchronized (this.singletonObjects) {
+				lockAcquired(LockContentionMonitor.SINGLETON_MUTEX, lockRequestTime);
+				if (this.singletonsCurrentlyInDestruction) {
+					throw new IllegalStateException("Could not replace singleton '" + beanName
+							+ "': singletons of this factory are in destruction");
+				}
+				oldInstance = this.singletonObjects.get(beanName);
+				if (oldInstance == null) {
+					throw new IllegalStateException("Could not replace singleton '" + beanName
+							+ "': there is no singleton instance bound");
+				}
+				// 直接覆盖，没有移除再放入的空档
+				this.singletonObjects.put(beanName, newInstance);
+				// 冻结的单例表按新的实例重建一张
+				if (this.frozenSingletons != null) {
+					this.frozenSingletons = buildFrozenSingletonTable();
+				}
+			}
+			lockRequestTime = lockRequested();
+			synchronized (this.disposableBeans) {
+				lockAcquired(LockContentionMonitor.DISPOSABLE_BEANS, lockRequestTime);
+				oldDisposableBean = this.disposableBeans.get(beanName);
+				if (newInstance instanceof DisposableBean) {
+					this.disposableBeans.put(beanName, newInstance);
+				} else {
+					this.disposableBeans.remove(beanName);
+				}
+			}
+			singletonReplaced(beanName, (oldInstance != NULL_OBJECT ? oldInstance : null), newInstance);
+		} finally {
+			creationLock.unlock();
+		}
+
+		if (oldDisposableBean != null) {
+			destroyReplacedSingleton(beanName, (DisposableBean) oldDisposableBean);
+		}
+		String[] dependentBeans = getDependentBeans(beanName);
+		if (dependentBeans.length > 0 && logger.isInfoEnabled()) {
+			logger.info("Replaced singleton '" + beanName + "' - dependent beans still referencing the old instance: "
+					+ StringUtils.arrayToCommaDelimitedString(dependentBeans));
+		}
+		return dependentBeans;
+	}
+
+	/**
+	 * 一个单例被替换之后的回调，子类在这里清理和旧实例相关的缓存
+	 * 
+	 * @param beanName
+	 * @param oldInstance
+	 * @param newInstance
+	 */
+	protected void singletonReplaced(String beanName, Object oldInstance, Object newInstance) {
+	}
+
+	/**
+	 * 销毁被替换下来的旧实例：没有设置延迟时立即销毁，否则交给延迟销毁的线程
+	 * 
+	 * @param beanName
+	 * @param disposableBean
+	 */
+	private void destroyReplacedSingleton(final String beanName, final DisposableBean disposableBean) {
+		Runnable destruction = new Runnable() {
+			public void run() {
+				try {
+					disposableBean.destroy();
+				} catch (Throwable ex) {
+					logger.error("Destroy method on replaced instance of bean with name '" + beanName
+							+ "' threw an exception", ex);
+				}
+			}
+		};
+		if (this.replacedSingletonGracePeriod <= 0) {
+			destruction.run();
+			return;
+		}
+		synchronized (this.disposableBeans) {
+			getSingletonMaintenanceScheduler().schedule(destruction, this.replacedSingletonGracePeriod,
+					TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * 返回单例的后台维护线程，没有则新建一个守护线程。调用方持有 disposableBeans 的锁
+	 * 
+	 * @return
+	 */
+	private ScheduledExecutorService getSingletonMaintenanceScheduler() {
+		if (this.singletonMaintenanceScheduler == null) {
+			this.singletonMaintenanceScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "singleton-maintenance");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return this.singletonMaintenanceScheduler;
+	}
+
+	/**
+	 * 把一个即将放入缓存的单例登记为可回收的。回收过的单例再次登记时计一次重建；
+	 * 设置了最大个数时，超出的部分立即回收最久没有访问的
+	 * 
+	 * @param beanName
+	 */
+	protected void registerEvictableSingleton(String beanName) {
+		EvictableSingleton newEntry = new EvictableSingleton();
+		EvictableSingleton entry = this.evictableSingletons.putIfAbsent(beanName, newEntry);
+		if (entry == null) {
+			entry = newEntry;
+		} else if (entry.evicted) {
+			entry.evicted = false;
+			this.singletonRecreationCount.incrementAndGet();
+		}
+		entry.lastAccessTime = System.nanoTime();
+
+		if (this.maxEvictableSingletons > 0) {
+			evictSingletons(beanName);
+		}
+		if (this.evictableSingletonIdleTimeout > 0) {
+			synchronized (this.disposableBeans) {
+				if (!this.evictionSweepScheduled) {
+					long period = Math.max(this.evictableSingletonIdleTimeout / 2, 1);
+					getSingletonMaintenanceScheduler().scheduleWithFixedDelay(new Runnable() {
+						public void run() {
+							try {
+								evictSingletons();
+							} catch (Throwable ex) {
+								logger.warn("Eviction of idle singletons failed", ex);
+							}
+						}
+					}, period, period, TimeUnit.MILLISECONDS);
+					this.evictionSweepScheduled = true;
+				}
+			}
+		}
+	}
+
+	/**
+	 * 判断指定的单例是否是可回收的
+	 * 
+	 * @param beanName
+	 * @return
+	 */
+	protected boolean isEvictableSingleton(String beanName) {
+		return (!this.evictableSingletons.isEmpty() && this.evictableSingletons.containsKey(beanName));
+	}
+
+	/**
+	 * 按空闲时间和最大个数回收可回收的单例，通过它的DisposableBean 销毁，下次getBean 时重新创建。<br>
+	 * 有别的bean 依赖的、正在创建的单例不回收
+	 * 
+	 * @return 回收的个数
+	 */
+	public int evictSingletons() {
+		return evictSingletons(null);
+	}
+
+	/**
+	 * @param registeringBeanName
+	 *            正在登记、马上要放入缓存的单例，它占一个名额但不会被回收
+	 * @return
+	 */
+	private int evictSingletons(String registeringBeanName) {
+		if (this.evictableSingletons.isEmpty()) {
+			return 0;
+		}
+		int evicted = 0;
+		long now = System.nanoTime();
+		long idleNanos = TimeUnit.MILLISECONDS.toNanos(this.evictableSingletonIdleTimeout);
+		List<Map.Entry<String, EvictableSingleton>> live = new ArrayList<Map.Entry<String, EvictableSingleton>>();
+		for (Map.Entry<String, EvictableSingleton> entry : this.evictableSingletons.entrySet()) {
+			String beanName = entry.getKey();
+			if (beanName.equals(registeringBeanName) || !this.singletonObjects.containsKey(beanName)) {
+				continue;
+			}
+			if (idleNanos > 0 && now - entry.getValue().lastAccessTime >= idleNanos
+					&& evictSingleton(beanName, entry.getValue())) {
+				evicted++;
+			} else {
+				live.add(entry);
+			}
+		}
+
+		int limit = this.maxEvictableSingletons - (registeringBeanName != null ? 1 : 0);
+		if (this.maxEvictableSingletons > 0 && live.size() > limit) {
+			// 最久没有访问的排在前面
+			Collections.sort(live, new Comparator<Map.Entry<String, EvictableSingleton>>() {
+				public int compare(Map.Entry<String, EvictableSingleton> e1, Map.Entry<String, EvictableSingleton> e2) {
+					long t1 = e1.getValue().lastAccessTime;
+					long t2 = e2.getValue().lastAccessTime;
+					return (t1 < t2 ? -1 : (t1 == t2 ? 0 : 1));
+				}
+			});
+			int excess = live.size() - Math.max(limit, 0);
+			for (Map.Entry<String, EvictableSingleton> entry : live) {
+				if (excess == 0) {
+					break;
+				}
+				if (evictSingleton(entry.getKey(), entry.getValue())) {
+					evicted++;
+					excess--;
+				}
+			}
+		}
+		return evicted;
+	}
+
+	/**
+	 * 回收一个可回收的单例。只在能立即拿到它的创建锁时回收，不和正在创建它的线程抢
+	 * 
+	 * @param beanName
+	 * @param entry
+	 * @return 是否回收了
+	 */
+	private boolean evictSingleton(String beanName, EvictableSingleton entry) {
+		if (hasDependentBean(beanName)) {
+			return false;
+		}
+		ReentrantLock creationLock = getSingletonCreationLock(beanName);
+		if (!creationLock.tryLock()) {
+			return false;
+		}
+		try {
+			if (!this.singletonObjects.containsKey(beanName) || this.singletonsCurrentlyInCreation.containsKey(beanName)) {
+				return false;
+			}
+			entry.evicted = true;
+			destroySingleton(beanName);
+		} finally {
+			creationLock.unlock();
+		}
+		this.singletonEvictionCount.incrementAndGet();
+		if (logger.isDebugEnabled()) {
+			logger.debug("Evicted singleton bean '" + beanName + "'");
+		}
+		return true;
+	}
+
 	/**
 	 * 添加单例
 	 * 
@@ -88,8 +639,11 @@ public class DefaultSingletonBeanRegistry extends SimpleAliasRegistry implements
 	 * @param singletonObject
 	 */
 	protected void addSingleton(String beanName, Object singletonObject) {
+		long lockRequestTime = lockRequested();
 		synchronized (this.singletonObjects) {
-			// 单例缓存中增加
+			lockAcquired(LockContentionMonitor.SINGLETON_MUTEX, lockRequestTime);
+			unfreezeSingletons(beanName);
+			// 单例缓存中增加。先放完整的实例再清理早期的缓存，无锁的读取方总能拿到其中一个
 			this.singletonObjects.put(beanName, (singletonObject != null ? singletonObject : NULL_OBJECT));
 			// 单例工厂移除
 			this.singletonFactories.remove(beanName);
@@ -108,8 +662,11 @@ public class DefaultSingletonBeanRegistry extends SimpleAliasRegistry implements
 	 */
 	protected void addSingletonFactory(String beanName, ObjectFactory singletonFactory) {
 		Assert.notNull(singletonFactory, "Singleton factory must not be null");
+		long lockRequestTime = lockRequested();
 		synchronized (this.singletonObjects) {
+			lockAcquired(LockContentionMonitor.SINGLETON_MUTEX, lockRequestTime);
 			if (!this.singletonObjects.containsKey(beanName)) {
+				unfreezeSingletons(beanName);
 				this.singletonFactories.put(beanName, singletonFactory);
 				this.earlySingletonObjects.remove(beanName);
 				this.registeredSingletons.add(beanName);
@@ -123,7 +680,9 @@ public class DefaultSingletonBeanRegistry extends SimpleAliasRegistry implements
 	}
 
 	/**
-	 * 根据bean name 获取实例， 并且判断是否允许 早期的bean进行关联
+	 * 根据bean name 获取实例， 并且判断是否允许 早期的bean进行关联<br>
+	 * 早期的bean 只对正在创建它的线程可见，其他线程拿到null 后会走创建流程，在这个bean 的创建锁上等待完整的实例。<br>
+	 * 三级缓存都是并发的map，命中时不加锁；单例工厂 --> 早期单例 的提升锁这个bean 自己的创建锁，按 promoteSingletonFactory 的协议认领和发布
 	 * 
 	 * @param beanName
 	 * @param allowEarlyReference
@@ -131,26 +690,45 @@ public class DefaultSingletonBeanRegistry extends SimpleAliasRegistry implements
 	 * @return
 	 */
 	protected Object getSingleton(String beanName, boolean allowEarlyReference) {
+		// 先查冻结的单例表
+		FrozenSingletonTable frozen = this.frozenSingletons;
+		if (frozen != null) {
+			Object frozenObject = frozen.get(beanName);
+			if (frozenObject != null) {
+				return (frozenObject != NULL_OBJECT ? frozenObject : null);
+			}
+		}
 		// 缓存单例对象中获取bean
 		Object singletonObject = this.singletonObjects.get(beanName);
+		// 记录可回收单例的访问时间
+		if (singletonObject != null && !this.evictableSingletons.isEmpty()) {
+			EvictableSingleton evictable = this.evictableSingletons.get(beanName);
+			if (evictable != null) {
+				evictable.lastAccessTime = System.nanoTime();
+			}
+		}
 		// 如果为空
 		if (singletonObject == null) {
-			synchronized (this.singletonObjects) {
-				// 从早期的单例里面去取
-				singletonObject = this.earlySingletonObjects.get(beanName);
-				// 如果还是为空，且 允许关联早期的bean
-				if (singletonObject == null && allowEarlyReference) {
-					// 获取这个bean的 类创建工厂
-					ObjectFactory singletonFactory = this.singletonFactories.get(beanName);
-					// 如果工厂不为空
-					if (singletonFactory != null) {
-						// 创建实例
-						singletonObject = singletonFactory.getObject();
-						// 早期的放入缓存
-						this.earlySingletonObjects.put(beanName, singletonObject);
-						// 工厂移除
-						this.singletonFactories.remove(beanName);
+			// 其他线程正在创建中的bean，不能把半成品交出去
+			Thread creatingThread = this.singletonsCurrentlyInCreation.get(beanName);
+			if (creatingThread != null && creatingThread != Thread.currentThread()) {
+				return null;
+			}
+			// 从早期的单例里面去取
+			singletonObject = this.earlySingletonObjects.get(beanName);
+			// 如果还是为空，且 允许关联早期的bean，且 存在这个bean的 类创建工厂
+			if (singletonObject == null && allowEarlyReference && this.singletonFactories.containsKey(beanName)) {
+				ReentrantLock creationLock = getSingletonCreationLock(beanName);
+				creationLock.lock();
+				try {
+					// 拿到锁之后按 完整 --> 早期 --> 工厂 的顺序再检查一次
+					singletonObject = this.singletonObjects.get(beanName);
+					if (singletonObject == null) {
+						// 和死锁时取早期引用的线程用同一个协议提升工厂，工厂只调用一次
+						singletonObject = promoteSingletonFactory(beanName);
 					}
+				} finally {
+					creationLock.unlock();
 				}
 			}
 		}
@@ -159,7 +737,9 @@ public class DefaultSingletonBeanRegistry extends SimpleAliasRegistry implements
 	}
 
 	/**
-	 * 根据bean name 获取一个注册的对象，如果没有注册，则马上创建和注册
+	 * 根据bean name 获取一个注册的对象，如果没有注册，则马上创建和注册<br>
+	 * 已经创建完成的单例直接从缓存返回，不加锁；创建时只锁住这个bean name 自己的创建锁，
+	 * 所以不同的单例可以在不同线程里并发创建，要同一个bean 的线程只在这个bean 上等待
 	 * 
 	 * @param beanName
 	 * @param singletonFactory
@@ -167,45 +747,290 @@ public class DefaultSingletonBeanRegistry extends SimpleAliasRegistry implements
 	 */
 	public Object getSingleton(String beanName, ObjectFactory singletonFactory) {
 		Assert.notNull(beanName, "'beanName' must not be null");
-		synchronized (this.singletonObjects) {
-			Object singletonObject = this.singletonObjects.get(beanName);
-			if (singletonObject == null) {
-				// 在销毁中不能再次创建，先等
-				if (this.singletonsCurrentlyInDestruction) {
-					throw new BeanCreationNotAllowedException(beanName,
-							"Singleton bean creation not allowed while the singletons of this factory are in destruction "
-									+ "(Do not request a bean from a BeanFactory in a destroy method implementation!)");
-				}
-				if (logger.isDebugEnabled()) {
-					logger.debug("Creating shared instance of singleton bean '" + beanName + "'");
-				}
-				// 创建之前做的事情
-				beforeSingletonCreation(beanName);
-				boolean recordSuppressedExceptions = (this.suppressedExceptions == null);
-				if (recordSuppressedExceptions) {
-					this.suppressedExceptions = new LinkedHashSet<Exception>();
+		Object singletonObject = this.singletonObjects.get(beanName);
+		if (singletonObject == null) {
+			ReentrantLock creationLock = getSingletonCreationLock(beanName);
+			// 没有竞争时直接拿到锁，不做死锁检查
+			if (creationLock.tryLock()) {
+				lockAcquired(LockContentionMonitor.SINGLETON_CREATION_LOCK, 0, false);
+			} else {
+				long lockRequestTime = System.nanoTime();
+				Object earlyReference = awaitSingletonCreationLock(beanName, creationLock);
+				if (earlyReference != null) {
+					return (earlyReference != NULL_OBJECT ? earlyReference : null);
 				}
-				try {
-					singletonObject = singletonFactory.getObject();
-				} catch (BeanCreationException ex) {
+				lockAcquired(LockContentionMonitor.SINGLETON_CREATION_LOCK, System.nanoTime() - lockRequestTime, true);
+			}
+			try {
+				// 拿到锁之后再检查一次，也许别的线程已经创建好了
+				singletonObject = this.singletonObjects.get(beanName);
+				if (singletonObject == null) {
+					// 在销毁中不能再次创建，先等
+					if (this.singletonsCurrentlyInDestruction) {
+						throw new BeanCreationNotAllowedException(beanName,
+								"Singleton bean creation not allowed while the singletons of this factory are in destruction "
+										+ "(Do not request a bean from a BeanFactory in a destroy method implementation!)");
+					}
+					if (logger.isDebugEnabled()) {
+						logger.debug("Creating shared instance of singleton bean '" + beanName + "'");
+					}
+					// 创建之前做的事情
+					beforeSingletonCreation(beanName);
+					boolean recordSuppressedExceptions = (this.suppressedExceptions.get() == null);
 					if (recordSuppressedExceptions) {
-						for (Exception suppressedException : this.suppressedExceptions) {
-							ex.addRelatedCause(suppressedException);
+						this.suppressedExceptions.set(new LinkedHashSet<Exception>());
+					}
+					try {
+						singletonObject = singletonFactory.getObject();
+					} catch (BeanCreationException ex) {
+						if (recordSuppressedExceptions) {
+							for (Exception suppressedException : this.suppressedExceptions.get()) {
+								ex.addRelatedCause(suppressedException);
+							}
 						}
+						throw ex;
+					} finally {
+						if (recordSuppressedExceptions) {
+							this.suppressedExceptions.remove();
+						}
+						// 创建之后做的事情
+						afterSingletonCreation(beanName);
 					}
-					throw ex;
-				} finally {
-					if (recordSuppressedExceptions) {
-						this.suppressedExceptions = null;
+					// 将创建的实例添加进缓存
+					addSingleton(beanName, singletonObject);
+				}
+			} finally {
+				creationLock.unlock();
+			}
+		}
+		return (singletonObject != NULL_OBJECT ? singletonObject : null);
+	}
+
+	/**
+	 * 等待别的线程释放单例的创建锁。等待期间把 当前线程 --> bean name 登记到等待图里，
+	 * 沿着 bean --> 创建它的线程 --> 这个线程在等的bean 一直找下去，如果回到当前线程就是死锁
+	 * 
+	 * @param beanName
+	 * @param creationLock
+	 * @return 拿到锁时返回null；用早期引用解开死锁时返回这个早期引用，此时没有拿到锁
+	 */
+	private Object awaitSingletonCreationLock(String beanName, ReentrantLock creationLock) {
+		Thread currentThread = Thread.currentThread();
+		this.singletonsAwaitedByThread.put(currentThread, beanName);
+		try {
+			do {
+				String deadlockChain = findCreationDeadlock(beanName, currentThread);
+				if (deadlockChain != null) {
+					Object earlyReference = null;
+					if (this.resolveCreationDeadlockWithEarlyReference) {
+						earlyReference = getEarlyReferenceForDeadlock(beanName);
+					}
+					if (earlyReference == null) {
+						throw new BeanCurrentlyInCreationException(beanName,
+								"Deadlock between threads creating singletons: " + deadlockChain);
 					}
-					// 创建之后做的事情
-					afterSingletonCreation(beanName);
+					if (logger.isDebugEnabled()) {
+						logger.debug("Resolving deadlock between threads creating singletons with early reference to bean '"
+								+ beanName + "': " + deadlockChain);
+					}
+					return earlyReference;
+				}
+			} while (!creationLock.tryLock(CREATION_DEADLOCK_CHECK_INTERVAL, TimeUnit.MILLISECONDS));
+			return null;
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new BeanCreationException(beanName, "Interrupted while waiting for singleton creation in another thread",
+					ex);
+		} finally {
+			this.singletonsAwaitedByThread.remove(currentThread);
+		}
+	}
+
+	/**
+	 * 等待别的线程完成和这个bean 相关的创建(比如FactoryBean 生产对象)。和等待创建锁一样登记到等待图里，
+	 * 等待链回到当前线程时抛出异常，不会一直等下去
+	 * 
+	 * @param beanName
+	 * @param completion
+	 *            创建完成时放开的门闩
+	 * @throws BeanCurrentlyInCreationException
+	 *             等待形成了死锁
+	 */
+	protected final void awaitCreation(String beanName, CountDownLatch completion)
+			throws BeanCurrentlyInCreationException {
+		Thread currentThread = Thread.currentThread();
+		this.singletonsAwaitedByThread.put(currentThread, beanName);
+		try {
+			do {
+				String deadlockChain = findCreationDeadlock(beanName, currentThread);
+				if (deadlockChain != null) {
+					throw new BeanCurrentlyInCreationException(beanName, "Deadlock between threads creating beans: "
+							+ deadlockChain);
+				}
+			} while (!completion.await(CREATION_DEADLOCK_CHECK_INTERVAL, TimeUnit.MILLISECONDS));
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new BeanCreationException(beanName, "Interrupted while waiting for bean creation in another thread", ex);
+		} finally {
+			this.singletonsAwaitedByThread.remove(currentThread);
+		}
+	}
+
+	/**
+	 * 返回正在创建这个bean 的线程，等待图沿着它往下找。子类可以加上它自己的创建(比如FactoryBean 生产对象)
+	 * 
+	 * @param beanName
+	 * @return 没有线程在创建时返回null
+	 */
+	protected Thread getCreatingThread(String beanName) {
+		return this.singletonsCurrentlyInCreation.get(beanName);
+	}
+
+	/**
+	 * 在等待图里找从当前线程出发的环
+	 * 
+	 * @param beanName
+	 *            当前线程在等待的bean
+	 * @param currentThread
+	 * @return 有环时返回描述整条等待链的字符串，否则返回null
+	 */
+	private String findCreationDeadlock(String beanName, Thread currentThread) {
+		StringBuilder chain = new StringBuilder();
+		chain.append("thread [").append(currentThread.getName()).append("] waits for bean '").append(beanName)
+				.append("'");
+		Set<Thread> visited = new LinkedHashSet<Thread>();
+		String awaitedBeanName = beanName;
+		while (true) {
+			Thread creatingThread = getCreatingThread(awaitedBeanName);
+			if (creatingThread == null || !visited.add(creatingThread)) {
+				// 没有线程在创建(创建已经结束或者还没登记)，或者是别的线程之间的环，由它们自己发现
+				return null;
+			}
+			chain.append(" created by thread [").append(creatingThread.getName()).append("]");
+			if (creatingThread == currentThread) {
+				return chain.toString();
+			}
+			awaitedBeanName = this.singletonsAwaitedByThread.get(creatingThread);
+			if (awaitedBeanName == null) {
+				// 创建它的线程没有在等待，迟早会释放锁
+				return null;
+			}
+			chain.append(", which waits for bean '").append(awaitedBeanName).append("'");
+		}
+	}
+
+	/**
+	 * 死锁时取得对方线程已经暴露的早期引用。这个bean 的创建锁在对方线程手里，拿不到，
+	 * 按和 getSingleton(beanName, true) 一样的协议提升单例工厂
+	 * 
+	 * @param beanName
+	 * @return 没有早期引用时返回null
+	 */
+	private Object getEarlyReferenceForDeadlock(String beanName) {
+		Object singletonObject = this.singletonObjects.get(beanName);
+		if (singletonObject != null) {
+			return singletonObject;
+		}
+		return promoteSingletonFactory(beanName);
+	}
+
+	/**
+	 * 把单例工厂提升成早期单例，getSingleton(beanName, true) 和 死锁时取早期引用 用同一个协议：<br>
+	 * 先登记提升中的标记，登记到的线程用remove 从单例工厂缓存里认领工厂，不持有全局锁调用它，再用putIfAbsent 放进早期单例；
+	 * 没有登记到的线程等它做完，取同一个早期单例。所以一个工厂只会被调用一次，两边拿到的是同一个早期引用
+	 * 
+	 * @param beanName
+	 * @return 早期单例(可能是 NULL_OBJECT)，期间已经有完整的实例时返回完整的实例，没有工厂时返回null
+	 */
+	private Object promoteSingletonFactory(String beanName) {
+		Object singletonObject = this.earlySingletonObjects.get(beanName);
+		if (singletonObject != null) {
+			return singletonObject;
+		}
+		SingletonFactoryPromotion promotion = new SingletonFactoryPromotion();
+		SingletonFactoryPromotion existingPromotion = this.singletonFactoryPromotions.putIfAbsent(beanName, promotion);
+		if (existingPromotion != null) {
+			if (existingPromotion.thread == Thread.currentThread()) {
+				// 工厂里又来要这个bean 的早期引用，还没有
+				return null;
+			}
+			try {
+				existingPromotion.completion.await();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new BeanCreationException(beanName, "Interrupted while waiting for early singleton reference", ex);
+			}
+			return this.earlySingletonObjects.get(beanName);
+		}
+		try {
+			ObjectFactory singletonFactory = this.singletonFactories.remove(beanName);
+			if (singletonFactory == null) {
+				// 登记之前已经有线程提升完了 或者 没有工厂
+				return this.earlySingletonObjects.get(beanName);
+			}
+			Object earlyReference;
+			try {
+				earlyReference = singletonFactory.getObject();
+			} catch (RuntimeException ex) {
+				// 放回工厂，留给下一次提升
+				restoreSingletonFactory(beanName, singletonFactory);
+				throw ex;
+			} catch (Error err) {
+				restoreSingletonFactory(beanName, singletonFactory);
+				throw err;
+			}
+			if (earlyReference == null) {
+				earlyReference = NULL_OBJECT;
+			}
+			long lockRequestTime = lockRequested();
+			synchronized (this.singletonObjects) {
+				lockAcquired(LockContentionMonitor.SINGLETON_MUTEX, lockRequestTime);
+				singletonObject = this.singletonObjects.get(beanName);
+				if (singletonObject != null) {
+					return singletonObject;
 				}
-				// 将创建的实例添加进缓存
-				addSingleton(beanName, singletonObject);
+				singletonObject = this.earlySingletonObjects.putIfAbsent(beanName, earlyReference);
+				return (singletonObject != null ? singletonObject : earlyReference);
+			}
+		} finally {
+			this.singletonFactoryPromotions.remove(beanName, promotion);
+			promotion.completion.countDown();
+		}
+	}
+
+	/**
+	 * 提升失败时放回认领的单例工厂，这期间已经有完整的实例 或者 早期单例时不再放回
+	 * 
+	 * @param beanName
+	 * @param singletonFactory
+	 */
+	private void restoreSingletonFactory(String beanName, ObjectFactory singletonFactory) {
+		long lockRequestTime = lockRequested();
+		synchronized (this.singletonObjects) {
+			lockAcquired(LockContentionMonitor.SINGLETON_MUTEX, lockRequestTime);
+			if (!this.singletonObjects.containsKey(beanName) && !this.earlySingletonObjects.containsKey(beanName)
+					&& !this.singletonFactories.containsKey(beanName)) {
+				this.singletonFactories.put(beanName, singletonFactory);
+			}
+		}
+	}
+
+	/**
+	 * 获取指定bean name 的创建锁，没有则新建一把。同一个bean name 永远拿到同一把锁
+	 * 
+	 * @param beanName
+	 * @return
+	 */
+	protected final ReentrantLock getSingletonCreationLock(String beanName) {
+		ReentrantLock creationLock = this.singletonCreationLocks.get(beanName);
+		if (creationLock == null) {
+			ReentrantLock newLock = new ReentrantLock();
+			creationLock = this.singletonCreationLocks.putIfAbsent(beanName, newLock);
+			if (creationLock == null) {
+				creationLock = newLock;
 			}
-			return (singletonObject != NULL_OBJECT ? singletonObject : null);
 		}
+		return creationLock;
 	}
 
 	/**
@@ -214,10 +1039,9 @@ public class DefaultSingletonBeanRegistry extends SimpleAliasRegistry implements
 	 * @param ex
 	 */
 	protected void onSuppressedException(Exception ex) {
-		synchronized (this.singletonObjects) {
-			if (this.suppressedExceptions != null) {
-				this.suppressedExceptions.add(ex);
-			}
+		Set<Exception> suppressed = this.suppressedExceptions.get();
+		if (suppressed != null) {
+			suppressed.add(ex);
 		}
 	}
 
@@ -227,7 +1051,10 @@ public class DefaultSingletonBeanRegistry extends SimpleAliasRegistry implements
 	 * @param beanName
 	 */
 	protected void removeSingleton(String beanName) {
+		long lockRequestTime = lockRequested();
 		synchronized (this.singletonObjects) {
+			lockAcquired(LockContentionMonitor.SINGLETON_MUTEX, lockRequestTime);
+			unfreezeSingletons(beanName);
 			this.singletonObjects.remove(beanName);
 			this.singletonFactories.remove(beanName);
 			this.earlySingletonObjects.remove(beanName);
@@ -237,23 +1064,93 @@ public class DefaultSingletonBeanRegistry extends SimpleAliasRegistry implements
 
 	@Override
 	public boolean containsSingleton(String beanName) {
+		FrozenSingletonTable frozen = this.frozenSingletons;
+		if (frozen != null && frozen.contains(beanName)) {
+			return true;
+		}
 		return (this.singletonObjects.containsKey(beanName));
 	}
 
 	@Override
 	public String[] getSingletonNames() {
+		FrozenSingletonTable frozen = this.frozenSingletons;
+		// 有可回收的单例时，注册的名字会变化，不能用冻结的名字
+		if (frozen != null && this.evictableSingletons.isEmpty()) {
+			return frozen.getSingletonNames();
+		}
+		long lockRequestTime = lockRequested();
 		synchronized (this.singletonObjects) {
+			lockAcquired(LockContentionMonitor.SINGLETON_MUTEX, lockRequestTime);
 			return StringUtils.toStringArray(this.registeredSingletons);
 		}
 	}
 
 	@Override
 	public int getSingletonCount() {
+		FrozenSingletonTable frozen = this.frozenSingletons;
+		if (frozen != null && this.evictableSingletons.isEmpty()) {
+			return frozen.size();
+		}
+		long lockRequestTime = lockRequested();
 		synchronized (this.singletonObjects) {
+			lockAcquired(LockContentionMonitor.SINGLETON_MUTEX, lockRequestTime);
 			return this.registeredSingletons.size();
 		}
 	}
 
+	/**
+	 * 把当前所有的单例冻结成一张只读的表，之后的查询不加锁、不分配对象。<br>
+	 * 还有单例正在创建(或者只暴露了早期引用)时不冻结；冻结之后再注册、创建或者移除单例，会自动退回到可变的缓存
+	 */
+	public void freezeSingletons() {
+		long lockRequestTime = lockRequested();
+		synchronized (this.singletonObjects) {
+			lockAcquired(LockContentionMonitor.SINGLETON_MUTEX, lockRequestTime);
+			if (!this.singletonFactories.isEmpty() || !this.earlySingletonObjects.isEmpty()
+					|| !this.singletonsCurrentlyInCreation.isEmpty()) {
+				if (logger.isDebugEnabled()) {
+					logger.debug("Not freezing singletons in " + this + ": singletons are currently in creation");
+				}
+				return;
+			}
+			this.frozenSingletons = buildFrozenSingletonTable();
+		}
+	}
+
+	/**
+	 * 用当前的单例建一张冻结表。可回收的单例会被回收和重建，不放进冻结表，只从可变的缓存里读
+	 * 
+	 * @return
+	 */
+	private FrozenSingletonTable buildFrozenSingletonTable() {
+		Map<String, Object> singletons = this.singletonObjects;
+		if (!this.evictableSingletons.isEmpty()) {
+			singletons = new HashMap<String, Object>(this.singletonObjects);
+			singletons.keySet().removeAll(this.evictableSingletons.keySet());
+		}
+		return new FrozenSingletonTable(singletons, StringUtils.toStringArray(this.registeredSingletons));
+	}
+
+	/**
+	 * 单例有变化时丢弃冻结表。可回收的单例不在冻结表里，它的回收和重建不影响冻结表
+	 * 
+	 * @param beanName
+	 */
+	private void unfreezeSingletons(String beanName) {
+		if (this.frozenSingletons != null && !this.evictableSingletons.containsKey(beanName)) {
+			this.frozenSingletons = null;
+		}
+	}
+
+	/**
+	 * 判断当前是否在使用冻结的单例表
+	 * 
+	 * @return
+	 */
+	public boolean isSingletonsFrozen() {
+		return (this.frozenSingletons != null);
+	}
+
 	/**
 	 * 在创建实例之前
 	 * 
@@ -261,7 +1158,8 @@ public class DefaultSingletonBeanRegistry extends SimpleAliasRegistry implements
 	 */
 	protected void beforeSingletonCreation(String beanName) {
 		// 判断 这个bean name 不是被创建之前的检查排除了的 ，并且 将这个beanname 添加到当前创建中的缓存。
-		if (!this.inCreationCheckExclusions.contains(beanName) && !this.singletonsCurrentlyInCreation.add(beanName)) {
+		if (!this.inCreationCheckExclusions.contains(beanName)
+				&& this.singletonsCurrentlyInCreation.putIfAbsent(beanName, Thread.currentThread()) != null) {
 			throw new BeanCurrentlyInCreationException(beanName);
 		}
 	}
@@ -273,7 +1171,8 @@ public class DefaultSingletonBeanRegistry extends SimpleAliasRegistry implements
 	 */
 	protected void afterSingletonCreation(String beanName) {
 		// 判断 这个bean name 不是被创建之前的检查排除了的 ，并且 将这个beanname 到当前创建中的缓存 移除。
-		if (!this.inCreationCheckExclusions.contains(beanName) && !this.singletonsCurrentlyInCreation.remove(beanName)) {
+		if (!this.inCreationCheckExclusions.contains(beanName)
+				&& this.singletonsCurrentlyInCreation.remove(beanName) == null) {
 			throw new IllegalStateException("Singleton '" + beanName + "' isn't currently in creation");
 		}
 	}
@@ -301,7 +1200,7 @@ public class DefaultSingletonBeanRegistry extends SimpleAliasRegistry implements
 	 * @return
 	 */
 	public final boolean isSingletonCurrentlyInCreation(String beanName) {
-		return this.singletonsCurrentlyInCreation.contains(beanName);
+		return this.singletonsCurrentlyInCreation.containsKey(beanName);
 	}
 
 	/**
@@ -311,7 +1210,9 @@ public class DefaultSingletonBeanRegistry extends SimpleAliasRegistry implements
 	 * @param bean
 	 */
 	public void registerDisposableBean(String beanName, DisposableBean bean) {
+		long lockRequestTime = lockRequested();
 		synchronized (this.disposableBeans) {
+			lockAcquired(LockContentionMonitor.DISPOSABLE_BEANS, lockRequestTime);
 			this.disposableBeans.put(beanName, bean);
 		}
 	}
@@ -325,14 +1226,7 @@ public class DefaultSingletonBeanRegistry extends SimpleAliasRegistry implements
 	 *            父bean name
 	 */
 	public void registerContainedBean(String containedBeanName, String containingBeanName) {
-		synchronized (this.containedBeanMap) {
-			Set<String> containedBeans = this.containedBeanMap.get(containingBeanName);
-			if (containedBeans == null) {
-				containedBeans = new LinkedHashSet<String>(8);
-				this.containedBeanMap.put(containingBeanName, containedBeans);
-			}
-			containedBeans.add(containedBeanName);
-		}
+		this.dependencyGraph.registerContainedBean(containedBeanName, containingBeanName);
 		registerDependentBean(containedBeanName, containingBeanName);
 	}
 
@@ -345,24 +1239,18 @@ public class DefaultSingletonBeanRegistry extends SimpleAliasRegistry implements
 	 */
 	public void registerDependentBean(String beanName, String dependentBeanName) {
 		String canonicalName = canonicalName(beanName);
-		// 注册 依赖的beanName 的 子bean
-		synchronized (this.dependentBeanMap) {
-			Set<String> dependentBeans = this.dependentBeanMap.get(canonicalName);
-			if (dependentBeans == null) {
-				dependentBeans = new LinkedHashSet<String>(8);
-				this.dependentBeanMap.put(canonicalName, dependentBeans);
-			}
-			dependentBeans.add(dependentBeanName);
-		}
-		// 注册 被beanName 依赖的 父bean
-		synchronized (this.dependenciesForBeanMap) {
-			Set<String> dependenciesForBean = this.dependenciesForBeanMap.get(dependentBeanName);
-			if (dependenciesForBean == null) {
-				dependenciesForBean = new LinkedHashSet<String>(8);
-				this.dependenciesForBeanMap.put(dependentBeanName, dependenciesForBean);
-			}
-			dependenciesForBean.add(canonicalName);
-		}
+		// 同时注册 依赖的beanName 的 子bean 和 被beanName 依赖的 父bean
+		this.dependencyGraph.registerDependentBean(canonicalName, dependentBeanName);
+	}
+
+	/**
+	 * 获取指定的bean 下包含的所有bean
+	 * 
+	 * @param beanName
+	 * @return
+	 */
+	public String[] getContainedBeans(String beanName) {
+		return this.dependencyGraph.getContainedBeans(beanName);
 	}
 
 	/**
@@ -372,7 +1260,7 @@ public class DefaultSingletonBeanRegistry extends SimpleAliasRegistry implements
 	 * @return
 	 */
 	protected boolean hasDependentBean(String beanName) {
-		return this.dependentBeanMap.containsKey(beanName);
+		return this.dependencyGraph.hasDependentBean(beanName);
 	}
 
 	/**
@@ -382,11 +1270,7 @@ public class DefaultSingletonBeanRegistry extends SimpleAliasRegistry implements
 	 * @return
 	 */
 	public String[] getDependentBeans(String beanName) {
-		Set<String> dependentBeans = this.dependentBeanMap.get(beanName);
-		if (dependentBeans == null) {
-			return new String[0];
-		}
-		return StringUtils.toStringArray(dependentBeans);
+		return this.dependencyGraph.getDependentBeans(beanName);
 	}
 
 	/**
@@ -396,11 +1280,7 @@ public class DefaultSingletonBeanRegistry extends SimpleAliasRegistry implements
 	 * @return
 	 */
 	public String[] getDependenciesForBean(String beanName) {
-		Set<String> dependenciesForBean = this.dependenciesForBeanMap.get(beanName);
-		if (dependenciesForBean == null) {
-			return new String[0];
-		}
-		return dependenciesForBean.toArray(new String[dependenciesForBean.size()]);
+		return this.dependencyGraph.getDependenciesForBean(beanName);
 	}
 
 	/**
@@ -415,23 +1295,47 @@ public class DefaultSingletonBeanRegistry extends SimpleAliasRegistry implements
 			this.singletonsCurrentlyInDestruction = true;
 		}
 
+		// 停掉后台维护线程，还在等待延迟销毁的旧实例先销毁。定期回收的任务在关闭之后运行只会取消自己
+		List<Runnable> pendingDestructions = null;
+		synchronized (this.disposableBeans) {
+			if (this.singletonMaintenanceScheduler != null) {
+				pendingDestructions = this.singletonMaintenanceScheduler.shutdownNow();
+				this.singletonMaintenanceScheduler = null;
+				this.evictionSweepScheduled = false;
+			}
+		}
+		if (pendingDestructions != null) {
+			for (Runnable destruction : pendingDestructions) {
+				destruction.run();
+			}
+		}
+
 		String[] disposableBeanNames;
 		synchronized (this.disposableBeans) {
 			disposableBeanNames = StringUtils.toStringArray(this.disposableBeans.keySet());
 		}
-		for (int i = disposableBeanNames.length - 1; i >= 0; i--) {
-			destroySingleton(disposableBeanNames[i]);
+		if (this.destructionExecutor != null && disposableBeanNames.length > 0) {
+			new ParallelSingletonDestroyer(this, disposableBeanNames, this.destructionExecutor,
+					this.beanDestructionTimeout, this.totalDestructionTimeout).destroy();
+		} else if (this.parallelDestruction && this.destructionParallelism > 1 && disposableBeanNames.length > 1) {
+			new ParallelSingletonDestroyer(this, disposableBeanNames, this.destructionParallelism,
+					this.beanDestructionTimeout, this.totalDestructionTimeout).destroy();
+		} else {
+			for (int i = disposableBeanNames.length - 1; i >= 0; i--) {
+				destroySingleton(disposableBeanNames[i]);
+			}
 		}
 
-		this.containedBeanMap.clear();
-		this.dependentBeanMap.clear();
-		this.dependenciesForBeanMap.clear();
+		this.dependencyGraph.clear();
+		this.evictableSingletons.clear();
 
 		synchronized (this.singletonObjects) {
+			this.frozenSingletons = null;
 			this.singletonObjects.clear();
 			this.singletonFactories.clear();
 			this.earlySingletonObjects.clear();
 			this.registeredSingletons.clear();
+			this.singletonCreationLocks.clear();
 			this.singletonsCurrentlyInDestruction = false;
 		}
 	}
@@ -449,12 +1353,38 @@ public class DefaultSingletonBeanRegistry extends SimpleAliasRegistry implements
 
 		// 自由的bean 实例
 		DisposableBean disposableBean;
+		long lockRequestTime = lockRequested();
 		synchronized (this.disposableBeans) {
+			lockAcquired(LockContentionMonitor.DISPOSABLE_BEANS, lockRequestTime);
 			disposableBean = (DisposableBean) this.disposableBeans.remove(beanName);
 		}
 		destroyBean(beanName, disposableBean);
 	}
 
+	/**
+	 * 只销毁指定的bean 自己：从缓存中移除，调用它的DisposableBean。不去销毁依赖它的bean 和它包含的bean，
+	 * 由调用方保证这些bean 的销毁顺序
+	 * 
+	 * @param beanName
+	 */
+	void destroySingletonInstance(String beanName) {
+		removeSingleton(beanName);
+
+		DisposableBean disposableBean;
+		long lockRequestTime = lockRequested();
+		synchronized (this.disposableBeans) {
+			lockAcquired(LockContentionMonitor.DISPOSABLE_BEANS, lockRequestTime);
+			disposableBean = (DisposableBean) this.disposableBeans.remove(beanName);
+		}
+		if (disposableBean != null) {
+			try {
+				disposableBean.destroy();
+			} catch (Throwable ex) {
+				logger.error("Destroy method on bean with name '" + beanName + "' threw an exception", ex);
+			}
+		}
+	}
+
 	/**
 	 * 销毁任意处理的bean(自由bean)
 	 * 
@@ -462,10 +1392,11 @@ public class DefaultSingletonBeanRegistry extends SimpleAliasRegistry implements
 	 * @param bean
 	 */
 	protected void destroyBean(String beanName, DisposableBean bean) {
-		Set<String> dependencies = this.dependentBeanMap.remove(beanName);
-		if (dependencies != null) {
+		String[] dependencies = this.dependencyGraph.removeDependentBeans(beanName);
+		if (dependencies.length > 0) {
 			if (logger.isDebugEnabled()) {
-				logger.debug("Retrieved dependent beans for bean '" + beanName + "': " + dependencies);
+				logger.debug("Retrieved dependent beans for bean '" + beanName + "': "
+						+ StringUtils.arrayToCommaDelimitedString(dependencies));
 			}
 			for (String dependentBeanName : dependencies) {
 				destroySingleton(dependentBeanName);
@@ -473,32 +1404,93 @@ public class DefaultSingletonBeanRegistry extends SimpleAliasRegistry implements
 		}
 
 		if (bean != null) {
-			try {
-				bean.destroy();
-			} catch (Throwable ex) {
-				logger.error("Destroy method on bean with name '" + beanName + "' threw an exception", ex);
-			}
+			invokeDestroyMethod(beanName, bean);
 		}
 
-		Set<String> containedBeans = this.containedBeanMap.remove(beanName);
-		if (containedBeans != null) {
-			for (String containedBeanName : containedBeans) {
-				destroySingleton(containedBeanName);
-			}
+		for (String containedBeanName : this.dependencyGraph.removeContainedBeans(beanName)) {
+			destroySingleton(containedBeanName);
 		}
 
-		synchronized (this.dependentBeanMap) {
-			for (Iterator<Map.Entry<String, Set<String>>> it = this.dependentBeanMap.entrySet().iterator(); it
-					.hasNext();) {
-				Map.Entry<String, Set<String>> entry = it.next();
-				Set<String> dependenciesToClean = entry.getValue();
-				dependenciesToClean.remove(beanName);
-				if (dependenciesToClean.isEmpty()) {
-					it.remove();
+		// 用反向的表找到和这个bean 相连的bean，只从这些bean 的表里移除它，再回收它的编号。
+		// 代价和这个bean 的边的个数成正比，不用遍历整个依赖图；依赖图不会随着单例的反复回收、重建一直增长
+		this.dependencyGraph.release(beanName);
+	}
+
+	/**
+	 * 调用bean 的DisposableBean 回调。设置了销毁线程池和期限时在线程池里执行，超过期限就取消它继续往下走。<br>
+	 * 当前线程已经是在销毁线程池里执行销毁的线程时直接执行：回调里再销毁别的bean 时，
+	 * 占着线程池的线程再等同一个线程池，线程池满了就只能等到超时
+	 * 
+	 * @param beanName
+	 * @param bean
+	 */
+	private void invokeDestroyMethod(String beanName, final DisposableBean bean) {
+		ExecutorService executor = this.destructionExecutor;
+		if (executor != null && this.beanDestructionTimeout > 0 && this.inDestructionThread.get() == null) {
+			Future<Object> future = null;
+			try {
+				future = executor.submit(new Callable<Object>() {
+					public Object call() throws Exception {
+						boolean entered = enterDestructionThread();
+						try {
+							bean.destroy();
+						} finally {
+							exitDestructionThread(entered);
+						}
+						return null;
+					}
+				});
+			} catch (RejectedExecutionException ex) {
+				// 线程池已经关闭，在当前线程里销毁
+			}
+			if (future != null) {
+				try {
+					future.get(this.beanDestructionTimeout, TimeUnit.MILLISECONDS);
+				} catch (TimeoutException ex) {
+					future.cancel(true);
+					logger.warn("Destroy method on bean with name '" + beanName + "' did not complete within "
+							+ this.beanDestructionTimeout + " ms - continuing shutdown");
+				} catch (ExecutionException ex) {
+					logger.error("Destroy method on bean with name '" + beanName + "' threw an exception",
+							ex.getCause());
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					future.cancel(true);
+					logger.warn("Interrupted while waiting for destroy method on bean with name '" + beanName + "'");
 				}
+				return;
 			}
 		}
-		this.dependenciesForBeanMap.remove(beanName);
+		try {
+			bean.destroy();
+		} catch (Throwable ex) {
+			logger.error("Destroy method on bean with name '" + beanName + "' threw an exception", ex);
+		}
+	}
+
+	/**
+	 * 标记当前线程开始在销毁线程池里执行销毁
+	 * 
+	 * @return 是否是这一次标记的，已经标记过时返回false
+	 */
+	final boolean enterDestructionThread() {
+		if (this.inDestructionThread.get() != null) {
+			return false;
+		}
+		this.inDestructionThread.set(Boolean.TRUE);
+		return true;
+	}
+
+	/**
+	 * 清除 enterDestructionThread 的标记
+	 * 
+	 * @param entered
+	 *            enterDestructionThread 的返回值
+	 */
+	final void exitDestructionThread(boolean entered) {
+		if (entered) {
+			this.inDestructionThread.remove();
+		}
 	}
 
 	/**
@@ -510,4 +1502,26 @@ public class DefaultSingletonBeanRegistry extends SimpleAliasRegistry implements
 		return this.singletonObjects;
 	}
 
+	/**
+	 * 一个单例工厂正在被提升的标记：提升的线程 和 提升结束时放开的门闩
+	 */
+	private static class SingletonFactoryPromotion {
+
+		final Thread thread = Thread.currentThread();
+
+		final CountDownLatch completion = new CountDownLatch(1);
+	}
+
+	/**
+	 * 一个可回收单例的访问记录
+	 */
+	private static class EvictableSingleton {
+
+		/** 最后一次访问的时间 */
+		volatile long lastAccessTime;
+
+		/** 是否已经被回收，还没有重建 */
+		volatile boolean evicted;
+	}
+
 }
@@ -5,10 +5,17 @@ import java.security.AccessController;
 import java.security.PrivilegedAction;
 import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
-import java.util.Map;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.AsyncFactoryBean;
 
 /**
  * 对 FactoryBean 的支持， 获取 FactoryBean 、 FactoryBean 的类型、获取 FactoryBean
@@ -20,7 +27,21 @@ import org.springframework.beans.BeansException;
 public abstract class FactoryBeanRegistrySupport extends DefaultSingletonBeanRegistry {
 
 	/** 缓存被FactoryBeans 创建的单例对象： FactoryBean name --> object */
-	private final Map<String, Object> factoryBeanObjectCache = new ConcurrentHashMap<String, Object>();
+	private final ConcurrentMap<String, Object> factoryBeanObjectCache = new ConcurrentHashMap<String, Object>();
+
+	/**
+	 * 缓存解析出的FactoryBean 生产的对象的类型： FactoryBean name --> Class。
+	 * FactoryBean 还没有初始化、解析不出类型时是 NULL_OBJECT，等它初始化之后再重新解析
+	 */
+	private final ConcurrentMap<String, Object> factoryBeanObjectTypeCache = new ConcurrentHashMap<String, Object>(64);
+
+	/** 正在生产单例对象的FactoryBean： FactoryBean name --> 生产中的标记，同一个名字同时只有一个线程在生产 */
+	private final ConcurrentMap<String, FactoryBeanObjectCreation> factoryBeanObjectsInCreation = new ConcurrentHashMap<String, FactoryBeanObjectCreation>(
+			16);
+
+	/** 单例的AsyncFactoryBean 在后台生产对象的Future，失败之前 或者 单例移除之前一直保留： AsyncFactoryBean name --> Future */
+	private final ConcurrentMap<String, Future<?>> asyncFactoryBeanObjectFutures = new ConcurrentHashMap<String, Future<?>>(
+			16);
 
 	/**
 	 * 判定factoryBean的类型，返回Object的类型
@@ -48,6 +69,63 @@ public abstract class FactoryBeanRegistrySupport extends DefaultSingletonBeanReg
 		}
 	}
 
+	/**
+	 * 判定已经存在的FactoryBean 实例生产的对象的类型，解析出的类型按bean name 缓存
+	 * 
+	 * @param beanName
+	 * @param factoryBean
+	 * @return
+	 */
+	protected Class getTypeForFactoryBean(String beanName, FactoryBean factoryBean) {
+		Object cachedType = this.factoryBeanObjectTypeCache.get(beanName);
+		if (cachedType instanceof Class) {
+			return (Class) cachedType;
+		}
+		Class type = getTypeForFactoryBean(factoryBean);
+		if (type != null) {
+			this.factoryBeanObjectTypeCache.put(beanName, type);
+		}
+		return type;
+	}
+
+	/**
+	 * 返回缓存的FactoryBean 生产的对象的类型：Class，解析不出类型时是 NULL_OBJECT，没有缓存时是null
+	 * 
+	 * @param beanName
+	 * @return
+	 */
+	protected final Object getCachedFactoryBeanObjectType(String beanName) {
+		return this.factoryBeanObjectTypeCache.get(beanName);
+	}
+
+	/**
+	 * 缓存解析出的FactoryBean 生产的对象的类型。解析不出类型(null) 时，只有FactoryBean 还没有初始化才缓存，
+	 * 它初始化(addSingleton) 时会清掉，之后重新解析
+	 * 
+	 * @param beanName
+	 * @param type
+	 */
+	protected final void cacheFactoryBeanObjectType(String beanName, Class type) {
+		if (type != null) {
+			this.factoryBeanObjectTypeCache.put(beanName, type);
+		} else if (!containsSingleton(beanName)) {
+			this.factoryBeanObjectTypeCache.put(beanName, NULL_OBJECT);
+			// FactoryBean 也许在这期间初始化完了，它已经清过缓存，不能留下过期的null
+			if (containsSingleton(beanName)) {
+				this.factoryBeanObjectTypeCache.remove(beanName, NULL_OBJECT);
+			}
+		}
+	}
+
+	/**
+	 * 作废缓存的FactoryBean 生产的对象的类型
+	 * 
+	 * @param beanName
+	 */
+	protected final void clearFactoryBeanObjectType(String beanName) {
+		this.factoryBeanObjectTypeCache.remove(beanName);
+	}
+
 	/**
 	 * 根据FactoryBean 的 beanName 获取Object
 	 * 
@@ -71,20 +149,156 @@ public abstract class FactoryBeanRegistrySupport extends DefaultSingletonBeanReg
 	protected Object getObjectFromFactoryBean(FactoryBean factory, String beanName, boolean shouldPostProcess) {
 		// 判断这个factory 是不是单例 且包含这个beanname
 		if (factory.isSingleton() && containsSingleton(beanName)) {
-			// 同步单例对象缓存
-			synchronized (getSingletonMutex()) {
-				Object object = this.factoryBeanObjectCache.get(beanName);
-				if (object == null) {
-					object = doGetObjectFromFactoryBean(factory, beanName, shouldPostProcess);
-					this.factoryBeanObjectCache.put(beanName, (object != null ? object : NULL_OBJECT));
+			Object object = this.factoryBeanObjectCache.get(beanName);
+			while (object == null) {
+				// 先登记生产中的标记，登记成功的线程生产，其他线程等它。生产时不持有任何锁：
+				// getObject() 里可能会getBean 拿别的单例的创建锁，等待的线程登记在等待图里，互相等待时会被发现
+				FactoryBeanObjectCreation creation = new FactoryBeanObjectCreation();
+				FactoryBeanObjectCreation existingCreation = this.factoryBeanObjectsInCreation.putIfAbsent(beanName,
+						creation);
+				if (existingCreation == null) {
+					try {
+						// 登记之前也许已经有线程生产完了
+						object = this.factoryBeanObjectCache.get(beanName);
+						if (object == null) {
+							object = doGetObjectFromFactoryBean(factory, beanName, shouldPostProcess);
+							if (object == null) {
+								object = NULL_OBJECT;
+							}
+							this.factoryBeanObjectCache.put(beanName, object);
+						}
+					} finally {
+						this.factoryBeanObjectsInCreation.remove(beanName, creation);
+						creation.completion.countDown();
+					}
+				} else if (existingCreation.thread == Thread.currentThread()) {
+					throw new BeanCurrentlyInCreationException(beanName,
+							"FactoryBean requested its own object from within getObject");
+				} else {
+					// 生产失败时缓存里还是没有，重新登记，由当前线程再生产一次
+					awaitCreation(beanName, existingCreation.completion);
+					object = this.factoryBeanObjectCache.get(beanName);
 				}
-				return (object != NULL_OBJECT ? object : null);
 			}
+			return (object != NULL_OBJECT ? object : null);
 		} else {
 			return doGetObjectFromFactoryBean(factory, beanName, shouldPostProcess);
 		}
 	}
 
+	/**
+	 * 提前启动单例的AsyncFactoryBean 在后台生产对象，不等它完成。已经生产好 或者 已经启动的不会再启动
+	 * 
+	 * @param beanName
+	 * @param factory
+	 * @throws BeanCreationException
+	 */
+	protected void startAsyncFactoryBean(String beanName, AsyncFactoryBean<?> factory) throws BeanCreationException {
+		if (this.factoryBeanObjectCache.containsKey(beanName) || this.asyncFactoryBeanObjectFutures.containsKey(beanName)) {
+			return;
+		}
+		// 先占住位置再启动，并发启动时只有占到位置的线程调用getObjectAsync
+		AsyncObjectCreation creation = new AsyncObjectCreation();
+		if (this.asyncFactoryBeanObjectFutures.putIfAbsent(beanName, creation) == null) {
+			startAsyncObjectCreation(beanName, factory, creation);
+		}
+	}
+
+	/**
+	 * 在占好的位置上启动生产，启动失败时让出位置
+	 * 
+	 * @param beanName
+	 * @param factory
+	 * @param creation
+	 * @throws BeanCreationException
+	 */
+	private void startAsyncObjectCreation(String beanName, AsyncFactoryBean<?> factory, AsyncObjectCreation creation)
+			throws BeanCreationException {
+		try {
+			creation.started(startAsyncObjectCreation(beanName, factory));
+		} catch (BeanCreationException ex) {
+			this.asyncFactoryBeanObjectFutures.remove(beanName, creation);
+			creation.failed(ex);
+			throw ex;
+		}
+	}
+
+	private Future<?> startAsyncObjectCreation(String beanName, AsyncFactoryBean<?> factory)
+			throws BeanCreationException {
+		Future<?> future;
+		try {
+			future = factory.getObjectAsync();
+		} catch (Throwable ex) {
+			throw new BeanCreationException(beanName, "AsyncFactoryBean threw exception on starting object creation", ex);
+		}
+		if (future == null) {
+			throw new BeanCreationException(beanName, "AsyncFactoryBean returned null from getObjectAsync");
+		}
+		return future;
+	}
+
+	/**
+	 * 等待AsyncFactoryBean 生产完对象。单例的FactoryBean 共用提前启动的Future，没有才现在启动并登记；
+	 * 生产失败 或者 被取消时移除Future，下一次会重新生产。等待时被中断，单例的Future 留给下一次取，原型的直接取消
+	 * 
+	 * @param factory
+	 * @param beanName
+	 * @return
+	 * @throws BeanCreationException
+	 */
+	private Object getObjectFromAsyncFactoryBean(AsyncFactoryBean<?> factory, String beanName)
+			throws BeanCreationException {
+		boolean shared = factory.isSingleton();
+		Future<?> future = null;
+		if (shared) {
+			future = this.asyncFactoryBeanObjectFutures.get(beanName);
+		}
+		if (future == null) {
+			if (shared) {
+				// 先占住位置再启动，并发时只有占到位置的线程调用getObjectAsync
+				AsyncObjectCreation creation = new AsyncObjectCreation();
+				future = this.asyncFactoryBeanObjectFutures.putIfAbsent(beanName, creation);
+				if (future == null) {
+					future = creation;
+					startAsyncObjectCreation(beanName, factory, creation);
+				}
+			} else {
+				future = startAsyncObjectCreation(beanName, factory);
+			}
+		}
+		try {
+			return future.get();
+		} catch (ExecutionException ex) {
+			discardAsyncObjectCreation(beanName, future, shared);
+			throw new BeanCreationException(beanName, "AsyncFactoryBean failed to create object", ex.getCause());
+		} catch (CancellationException ex) {
+			discardAsyncObjectCreation(beanName, future, shared);
+			throw new BeanCreationException(beanName, "AsyncFactoryBean object creation has been cancelled", ex);
+		} catch (InterruptedException ex) {
+			if (!shared) {
+				future.cancel(true);
+			}
+			Thread.currentThread().interrupt();
+			throw new BeanCreationException(beanName, "Interrupted while waiting for AsyncFactoryBean to create object",
+					ex);
+		}
+	}
+
+	/**
+	 * 丢弃失败的生产：单例的从登记里移除（只移除自己等的这个），原型的取消
+	 * 
+	 * @param beanName
+	 * @param future
+	 * @param shared
+	 */
+	private void discardAsyncObjectCreation(String beanName, Future<?> future, boolean shared) {
+		if (shared) {
+			this.asyncFactoryBeanObjectFutures.remove(beanName, future);
+		} else {
+			future.cancel(true);
+		}
+	}
+
 	/**
 	 * 从FactoryBean中获取Object 具体的动作
 	 * 
@@ -103,17 +317,28 @@ public abstract class FactoryBeanRegistrySupport extends DefaultSingletonBeanReg
 				try {
 					object = AccessController.doPrivileged(new PrivilegedExceptionAction<Object>() {
 						public Object run() throws Exception {
+							if (factory instanceof AsyncFactoryBean) {
+								return getObjectFromAsyncFactoryBean((AsyncFactoryBean<?>) factory, beanName);
+							}
 							return factory.getObject();
 						}
 					}, acc);
 				} catch (PrivilegedActionException pae) {
 					throw pae.getException();
 				}
+			} else if (factory instanceof AsyncFactoryBean) {
+				object = getObjectFromAsyncFactoryBean((AsyncFactoryBean<?>) factory, beanName);
 			} else {
 				object = factory.getObject();
 			}
 		} catch (FactoryBeanNotInitializedException ex) {
 			throw new BeanCurrentlyInCreationException(beanName, ex.toString());
+		} catch (BeanCreationException ex) {
+			if (factory instanceof AsyncFactoryBean) {
+				// 等待AsyncFactoryBean 时抛出的异常已经带着这个FactoryBean 的名字
+				throw ex;
+			}
+			throw new BeanCreationException(beanName, "FactoryBean threw exception on object creation", ex);
 		} catch (Throwable ex) {
 			throw new BeanCreationException(beanName, "FactoryBean threw exception on object creation", ex);
 		}
@@ -168,11 +393,59 @@ public abstract class FactoryBeanRegistrySupport extends DefaultSingletonBeanReg
 		return (FactoryBean) beanInstance;
 	}
 
+	@Override
+	protected Thread getCreatingThread(String beanName) {
+		Thread creatingThread = super.getCreatingThread(beanName);
+		if (creatingThread == null) {
+			FactoryBeanObjectCreation creation = this.factoryBeanObjectsInCreation.get(beanName);
+			if (creation != null) {
+				creatingThread = creation.thread;
+			}
+		}
+		return creatingThread;
+	}
+
+	@Override
+	protected void addSingleton(String beanName, Object singletonObject) {
+		super.addSingleton(beanName, singletonObject);
+		// FactoryBean 初始化完了，按实例重新解析它生产的对象的类型
+		this.factoryBeanObjectTypeCache.remove(beanName);
+	}
+
 	@Override
 	protected void removeSingleton(String beanName) {
 		super.removeSingleton(beanName);
 		// 同时移除factoryBean中的缓存
 		this.factoryBeanObjectCache.remove(beanName);
+		this.factoryBeanObjectTypeCache.remove(beanName);
+		Future<?> future = this.asyncFactoryBeanObjectFutures.remove(beanName);
+		if (future != null) {
+			future.cancel(true);
+		}
+	}
+
+	@Override
+	protected void singletonReplaced(String beanName, Object oldInstance, Object newInstance) {
+		super.singletonReplaced(beanName, oldInstance, newInstance);
+		// 旧的FactoryBean 生产的对象不再有效
+		this.factoryBeanObjectCache.remove(beanName);
+		this.factoryBeanObjectTypeCache.remove(beanName);
+		// 旧的FactoryBean 还没有取走的对象不再需要，让它停下来
+		Future<?> future = this.asyncFactoryBeanObjectFutures.remove(beanName);
+		if (future != null) {
+			future.cancel(true);
+		}
+	}
+
+	@Override
+	public void destroySingletons() {
+		super.destroySingletons();
+		this.factoryBeanObjectTypeCache.clear();
+		// 没有取走的对象不再需要，让还在生产的停下来
+		for (Future<?> future : this.asyncFactoryBeanObjectFutures.values()) {
+			future.cancel(true);
+		}
+		this.asyncFactoryBeanObjectFutures.clear();
 	}
 
 	/**
@@ -184,4 +457,79 @@ public abstract class FactoryBeanRegistrySupport extends DefaultSingletonBeanReg
 		return AccessController.getContext();
 	}
 
+	/**
+	 * 一个FactoryBean 正在生产单例对象的标记：生产的线程 和 生产结束(成功或者失败)时放开的门闩
+	 */
+	private static class FactoryBeanObjectCreation {
+
+		final Thread thread = Thread.currentThread();
+
+		final CountDownLatch completion = new CountDownLatch(1);
+	}
+
+	/**
+	 * 提前占住的AsyncFactoryBean 生产位置。占到位置的线程调用getObjectAsync 之后把真正的Future 交进来，
+	 * 在这之前来取的线程等它交进来；交进来之前被取消时，交进来的Future 马上取消
+	 */
+	private static class AsyncObjectCreation implements Future<Object> {
+
+		private final CountDownLatch startLatch = new CountDownLatch(1);
+
+		private volatile Future<?> future;
+
+		private volatile Throwable startFailure;
+
+		private volatile boolean cancelled = false;
+
+		void started(Future<?> future) {
+			this.future = future;
+			this.startLatch.countDown();
+			if (this.cancelled) {
+				future.cancel(true);
+			}
+		}
+
+		void failed(Throwable ex) {
+			this.startFailure = ex;
+			this.startLatch.countDown();
+		}
+
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			this.cancelled = true;
+			Future<?> future = this.future;
+			return (future == null || future.cancel(mayInterruptIfRunning));
+		}
+
+		public boolean isCancelled() {
+			Future<?> future = this.future;
+			return (future != null ? future.isCancelled() : this.cancelled);
+		}
+
+		public boolean isDone() {
+			Future<?> future = this.future;
+			return (future != null ? future.isDone() : this.cancelled || this.startFailure != null);
+		}
+
+		public Object get() throws InterruptedException, ExecutionException {
+			this.startLatch.await();
+			return awaitStarted().get();
+		}
+
+		public Object get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException,
+				TimeoutException {
+			long deadline = System.nanoTime() + unit.toNanos(timeout);
+			if (!this.startLatch.await(timeout, unit)) {
+				throw new TimeoutException();
+			}
+			return awaitStarted().get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+		}
+
+		private Future<?> awaitStarted() throws ExecutionException {
+			if (this.startFailure != null) {
+				throw new ExecutionException(this.startFailure);
+			}
+			return this.future;
+		}
+	}
+
 }
@@ -0,0 +1,101 @@
+package org.springframework.beans.factory.support;
+
+import java.util.Map;
+
+/**
+ * 启动完成之后冻结的单例表，只读<br>
+ * 开放定址(线性探测)的散列表，容量是2 的幂并且至少是单例个数的两倍；另外预先建好按注册顺序的bean name 数组。
+ * 建好之后不再修改，读取不加锁也不分配对象。单例有任何变化时由注册中心整张丢弃，回到可变的缓存
+ * 
+ * @author yanbin
+ * 
+ */
+final class FrozenSingletonTable {
+
+	private final String[] keys;
+
+	private final int[] hashes;
+
+	private final Object[] values;
+
+	private final int mask;
+
+	/** 按注册顺序的bean name */
+	private final String[] singletonNames;
+
+	/**
+	 * @param singletonObjects
+	 *            bean name --> 单例实例
+	 * @param singletonNames
+	 *            按注册顺序的bean name
+	 */
+	FrozenSingletonTable(Map<String, Object> singletonObjects, String[] singletonNames) {
+		int capacity = 2;
+		while (capacity < singletonObjects.size() * 2) {
+			capacity <<= 1;
+		}
+		this.keys = new String[capacity];
+		this.hashes = new int[capacity];
+		this.values = new Object[capacity];
+		this.mask = capacity - 1;
+		for (Map.Entry<String, Object> entry : singletonObjects.entrySet()) {
+			int hash = hash(entry.getKey());
+			int index = hash & this.mask;
+			while (this.keys[index] != null) {
+				index = (index + 1) & this.mask;
+			}
+			this.keys[index] = entry.getKey();
+			this.hashes[index] = hash;
+			this.values[index] = entry.getValue();
+		}
+		this.singletonNames = singletonNames;
+	}
+
+	/**
+	 * 返回bean name 对应的单例，没有则返回null
+	 * 
+	 * @param beanName
+	 * @return
+	 */
+	public Object get(String beanName) {
+		int hash = hash(beanName);
+		int index = hash & this.mask;
+		String key;
+		while ((key = this.keys[index]) != null) {
+			if (this.hashes[index] == hash && (key == beanName || key.equals(beanName))) {
+				return this.values[index];
+			}
+			index = (index + 1) & this.mask;
+		}
+		return null;
+	}
+
+	public boolean contains(String beanName) {
+		return (get(beanName) != null);
+	}
+
+	/**
+	 * 返回按注册顺序的bean name 的拷贝
+	 * 
+	 * @return
+	 */
+	public String[] getSingletonNames() {
+		return this.singletonNames.clone();
+	}
+
+	public int size() {
+		return this.singletonNames.length;
+	}
+
+	/**
+	 * 打散String 的hashCode，让低位也带上高位的信息
+	 * 
+	 * @param key
+	 * @return
+	 */
+	private static int hash(String key) {
+		int h = key.hashCode();
+		return h ^ (h >>> 16);
+	}
+
+}
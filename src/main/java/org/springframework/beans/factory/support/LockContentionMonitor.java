@@ -0,0 +1,179 @@
+package org.springframework.beans.factory.support;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 记录bean factory 里各个锁的竞争情况：获取次数、发生竞争的获取次数、总的等待时间 和 最长的等待时间<br>
+ * ReentrantLock 用 tryLock 是否失败判断竞争；synchronized 的监视器无法直接判断，等待时间超过 contentionThreshold 就算一次竞争。<br>
+ * 实现了 LockContentionMonitorMBean，可以直接注册到 MBeanServer 上
+ * 
+ * @author yanbin
+ * 
+ */
+public class LockContentionMonitor implements LockContentionMonitorMBean {
+
+	/** 单例缓存的全局锁 getSingletonMutex() */
+	public static final String SINGLETON_MUTEX = "singletonMutex";
+
+	/** 每个单例的创建锁，合在一起统计 */
+	public static final String SINGLETON_CREATION_LOCK = "singletonCreationLock";
+
+	/** disposableBeans 的锁 */
+	public static final String DISPOSABLE_BEANS = "disposableBeans";
+
+	/** 每个bean name 的merge bean definition 的锁，合在一起统计 */
+	public static final String MERGED_BEAN_DEFINITIONS = "mergedBeanDefinitions";
+
+	/** filteredPropertyDescriptorsCache 的锁 */
+	public static final String FILTERED_PROPERTY_DESCRIPTORS = "filteredPropertyDescriptorsCache";
+
+	/** 锁名 --> 统计 */
+	private final ConcurrentMap<String, LockStatistics> statistics = new ConcurrentHashMap<String, LockStatistics>(8);
+
+	/** synchronized 的等待时间超过多少纳秒算一次竞争 */
+	private volatile long contentionThresholdNanos = TimeUnit.MICROSECONDS.toNanos(10);
+
+	/**
+	 * 设置synchronized 的等待时间超过多少微秒算一次竞争，默认10 微秒
+	 * 
+	 * @param contentionThresholdMicros
+	 */
+	public void setContentionThresholdMicros(long contentionThresholdMicros) {
+		this.contentionThresholdNanos = TimeUnit.MICROSECONDS.toNanos(contentionThresholdMicros);
+	}
+
+	public long getContentionThresholdMicros() {
+		return TimeUnit.NANOSECONDS.toMicros(this.contentionThresholdNanos);
+	}
+
+	/**
+	 * 记录一次synchronized 监视器的获取
+	 * 
+	 * @param lockName
+	 * @param waitNanos
+	 */
+	public void recordMonitorAcquisition(String lockName, long waitNanos) {
+		recordAcquisition(lockName, waitNanos, waitNanos > this.contentionThresholdNanos);
+	}
+
+	/**
+	 * 记录一次锁的获取
+	 * 
+	 * @param lockName
+	 * @param waitNanos
+	 * @param contended
+	 *            获取时是否发生了竞争
+	 */
+	public void recordAcquisition(String lockName, long waitNanos, boolean contended) {
+		LockStatistics stats = obtainLockStatistics(lockName);
+		stats.acquisitions.incrementAndGet();
+		if (contended) {
+			stats.contendedAcquisitions.incrementAndGet();
+		}
+		stats.totalWaitNanos.addAndGet(waitNanos);
+		long max = stats.maxWaitNanos.get();
+		while (waitNanos > max && !stats.maxWaitNanos.compareAndSet(max, waitNanos)) {
+			max = stats.maxWaitNanos.get();
+		}
+	}
+
+	/**
+	 * 返回指定锁的统计，没有记录时返回null
+	 * 
+	 * @param lockName
+	 * @return
+	 */
+	public LockStatistics getLockStatistics(String lockName) {
+		return this.statistics.get(lockName);
+	}
+
+	public String[] getLockNames() {
+		return this.statistics.keySet().toArray(new String[0]);
+	}
+
+	public long getAcquisitionCount(String lockName) {
+		LockStatistics stats = this.statistics.get(lockName);
+		return (stats != null ? stats.getAcquisitionCount() : 0);
+	}
+
+	public long getContendedAcquisitionCount(String lockName) {
+		LockStatistics stats = this.statistics.get(lockName);
+		return (stats != null ? stats.getContendedAcquisitionCount() : 0);
+	}
+
+	public long getTotalWaitTimeMicros(String lockName) {
+		LockStatistics stats = this.statistics.get(lockName);
+		return (stats != null ? TimeUnit.NANOSECONDS.toMicros(stats.getTotalWaitNanos()) : 0);
+	}
+
+	public long getMaxWaitTimeMicros(String lockName) {
+		LockStatistics stats = this.statistics.get(lockName);
+		return (stats != null ? TimeUnit.NANOSECONDS.toMicros(stats.getMaxWaitNanos()) : 0);
+	}
+
+	public String[] getStatistics() {
+		String[] lockNames = getLockNames();
+		String[] lines = new String[lockNames.length];
+		for (int i = 0; i < lockNames.length; i++) {
+			lines[i] = lockNames[i] + ": " + this.statistics.get(lockNames[i]);
+		}
+		return lines;
+	}
+
+	public void reset() {
+		this.statistics.clear();
+	}
+
+	private LockStatistics obtainLockStatistics(String lockName) {
+		LockStatistics stats = this.statistics.get(lockName);
+		if (stats == null) {
+			LockStatistics newStats = new LockStatistics();
+			stats = this.statistics.putIfAbsent(lockName, newStats);
+			if (stats == null) {
+				stats = newStats;
+			}
+		}
+		return stats;
+	}
+
+	/**
+	 * 一个锁的统计
+	 */
+	public static class LockStatistics {
+
+		private final AtomicLong acquisitions = new AtomicLong();
+
+		private final AtomicLong contendedAcquisitions = new AtomicLong();
+
+		private final AtomicLong totalWaitNanos = new AtomicLong();
+
+		private final AtomicLong maxWaitNanos = new AtomicLong();
+
+		public long getAcquisitionCount() {
+			return this.acquisitions.get();
+		}
+
+		public long getContendedAcquisitionCount() {
+			return this.contendedAcquisitions.get();
+		}
+
+		public long getTotalWaitNanos() {
+			return this.totalWaitNanos.get();
+		}
+
+		public long getMaxWaitNanos() {
+			return this.maxWaitNanos.get();
+		}
+
+		@Override
+		public String toString() {
+			return "acquisitions=" + getAcquisitionCount() + ", contended=" + getContendedAcquisitionCount()
+					+ ", totalWait=" + TimeUnit.NANOSECONDS.toMicros(getTotalWaitNanos()) + "us, maxWait="
+					+ TimeUnit.NANOSECONDS.toMicros(getMaxWaitNanos()) + "us";
+		}
+	}
+
+}
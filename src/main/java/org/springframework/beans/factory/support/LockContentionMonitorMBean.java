@@ -0,0 +1,63 @@
+package org.springframework.beans.factory.support;
+
+/**
+ * 锁竞争统计的JMX 管理接口<br>
+ * 时间的单位都是微秒
+ * 
+ * @author yanbin
+ * 
+ */
+public interface LockContentionMonitorMBean {
+
+	/**
+	 * 返回所有有记录的锁的名字
+	 * 
+	 * @return
+	 */
+	String[] getLockNames();
+
+	/**
+	 * 返回指定锁的获取次数
+	 * 
+	 * @param lockName
+	 * @return
+	 */
+	long getAcquisitionCount(String lockName);
+
+	/**
+	 * 返回指定锁发生竞争(需要等待)的获取次数
+	 * 
+	 * @param lockName
+	 * @return
+	 */
+	long getContendedAcquisitionCount(String lockName);
+
+	/**
+	 * 返回等待指定锁的总时间
+	 * 
+	 * @param lockName
+	 * @return
+	 */
+	long getTotalWaitTimeMicros(String lockName);
+
+	/**
+	 * 返回等待指定锁的最长时间
+	 * 
+	 * @param lockName
+	 * @return
+	 */
+	long getMaxWaitTimeMicros(String lockName);
+
+	/**
+	 * 返回所有锁的统计，每个锁一行
+	 * 
+	 * @return
+	 */
+	String[] getStatistics();
+
+	/**
+	 * 清空所有的统计
+	 */
+	void reset();
+
+}
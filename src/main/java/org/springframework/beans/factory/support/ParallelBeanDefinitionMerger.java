@@ -0,0 +1,151 @@
+package org.springframework.beans.factory.support;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.BeansException;
+
+/**
+ * 冻结配置时并行的预先merge 所有的bean definition<br>
+ * 每个线程从同一个下标里领取下一个bean name，merge 它的bean definition、解析bean class 并做检查。
+ * merge 本身按bean name 加锁，不同的名字互不阻塞，共同的parent 只会merge 一次。<br>
+ * 一个bean definition 出错不会中断其他的，全部做完之后把所有的错误合在一起抛出
+ * 
+ * @author yanbin
+ * 
+ */
+class ParallelBeanDefinitionMerger {
+
+	private static final Log logger = LogFactory.getLog(ParallelBeanDefinitionMerger.class);
+
+	private final DefaultListableBeanFactory beanFactory;
+
+	private final String[] beanNames;
+
+	private final int parallelism;
+
+	/** 下一个要merge 的下标 */
+	private final AtomicInteger nextIndex = new AtomicInteger();
+
+	/** 和beanNames 对应的异常，没有出错的是null。每个下标只由领到它的线程写 */
+	private final BeansException[] failures;
+
+	private final AtomicInteger failureCount = new AtomicInteger();
+
+	ParallelBeanDefinitionMerger(DefaultListableBeanFactory beanFactory, String[] beanNames, int parallelism) {
+		this.beanFactory = beanFactory;
+		this.beanNames = beanNames;
+		this.parallelism = Math.max(1, Math.min(parallelism, beanNames.length));
+		this.failures = new BeansException[beanNames.length];
+	}
+
+	/**
+	 * merge 所有的bean definition，有任何一个出错时抛出合在一起的异常
+	 * 
+	 * @throws BeansException
+	 */
+	public void mergeAll() throws BeansException {
+		long startTime = System.nanoTime();
+		if (this.parallelism == 1) {
+			mergeRemaining();
+		} else {
+			ExecutorService executor = Executors.newFixedThreadPool(this.parallelism - 1,
+					new PreMergeThreadFactory());
+			try {
+				List<Future<?>> futures = new ArrayList<Future<?>>(this.parallelism - 1);
+				for (int i = 1; i < this.parallelism; i++) {
+					futures.add(executor.submit(new Runnable() {
+						public void run() {
+							mergeRemaining();
+						}
+					}));
+				}
+				// 当前线程也一起merge
+				mergeRemaining();
+				for (Future<?> future : futures) {
+					future.get();
+				}
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new BeanDefinitionStoreException("Interrupted while pre-merging bean definitions", ex);
+			} catch (ExecutionException ex) {
+				Throwable cause = ex.getCause();
+				if (cause instanceof Error) {
+					throw (Error) cause;
+				}
+				throw new BeanDefinitionStoreException("Pre-merging bean definitions failed", cause);
+			} finally {
+				executor.shutdownNow();
+			}
+		}
+
+		if (logger.isDebugEnabled()) {
+			logger.debug("Pre-merged " + this.beanNames.length + " bean definitions with parallelism "
+					+ this.parallelism + " in " + (System.nanoTime() - startTime) / 1000000 + " ms");
+		}
+		if (this.failureCount.get() > 0) {
+			throw buildFailure();
+		}
+	}
+
+	/**
+	 * 不断领取下一个bean name 并merge，直到全部领完
+	 */
+	private void mergeRemaining() {
+		int index;
+		while ((index = this.nextIndex.getAndIncrement()) < this.beanNames.length) {
+			String beanName = this.beanNames[index];
+			try {
+				this.beanFactory.preMergeBeanDefinition(beanName);
+			} catch (BeansException ex) {
+				this.failures[index] = ex;
+				this.failureCount.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * 按注册顺序把所有的错误合成一个异常，第一个错误作为cause
+	 * 
+	 * @return
+	 */
+	private BeanDefinitionStoreException buildFailure() {
+		StringBuilder msg = new StringBuilder();
+		msg.append(this.failureCount.get()).append(" of ").append(this.beanNames.length)
+				.append(" bean definitions are invalid:");
+		BeansException firstFailure = null;
+		for (int i = 0; i < this.failures.length; i++) {
+			BeansException failure = this.failures[i];
+			if (failure != null) {
+				msg.append("\n  '").append(this.beanNames[i]).append("': ").append(failure.getMessage());
+				if (firstFailure == null) {
+					firstFailure = failure;
+				}
+			}
+		}
+		return new BeanDefinitionStoreException(msg.toString(), firstFailure);
+	}
+
+	/**
+	 * 预先merge 用的守护线程
+	 */
+	private static class PreMergeThreadFactory implements ThreadFactory {
+
+		private final AtomicInteger threadCount = new AtomicInteger();
+
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "bean-definition-pre-merge-" + this.threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+
+}
@@ -0,0 +1,396 @@
+package org.springframework.beans.factory.support;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * 按依赖关系并行的销毁单例<br>
+ * 和 destroySingleton 递归的顺序一样：依赖一个bean 的bean 先销毁，然后是这个bean 自己，再然后是它包含的bean。
+ * 根据注册的依赖关系和包含关系建出这张反向的依赖图之后，互不依赖的子树放到线程池里同时销毁。<br>
+ * 每个bean 和全部单例都可以有销毁期限：超过期限的bean 打警告日志，当作已经销毁完，放出排在它后面的bean；
+ * 超过总期限后不再等待剩下的bean。图里有环的部分退回到顺序的 destroySingleton<br>
+ * 每个bean 的销毁用Future 跟踪，超过期限的bean 会被取消(中断执行它的线程)，最后按名字汇总报告所有没有完成的销毁。
+ * 可以使用调用方提供的线程池，此时不会关闭它
+ * 
+ * @author yanbin
+ * 
+ */
+class ParallelSingletonDestroyer {
+
+	private static final Log logger = LogFactory.getLog(ParallelSingletonDestroyer.class);
+
+	private final DefaultSingletonBeanRegistry registry;
+
+	private final String[] disposableBeanNames;
+
+	private final int parallelism;
+
+	private final long beanTimeoutNanos;
+
+	private final long totalTimeoutNanos;
+
+	/** 销毁完成(或者超时)的bean */
+	private final BlockingQueue<Node> completed = new LinkedBlockingQueue<Node>();
+
+	/** 超过期限被强制跳过的bean */
+	private final List<String> abandonedBeanNames = new ArrayList<String>();
+
+	/** 调用方提供的线程池，为null 时自己创建 */
+	private final ExecutorService sharedExecutor;
+
+	private ExecutorService executor;
+
+	ParallelSingletonDestroyer(DefaultSingletonBeanRegistry registry, String[] disposableBeanNames, int parallelism,
+			long beanTimeoutMillis, long totalTimeoutMillis) {
+		this(registry, disposableBeanNames, parallelism, null, beanTimeoutMillis, totalTimeoutMillis);
+	}
+
+	/**
+	 * @param registry
+	 * @param disposableBeanNames
+	 * @param executor
+	 *            执行销毁的线程池，销毁结束后不会关闭
+	 * @param beanTimeoutMillis
+	 * @param totalTimeoutMillis
+	 */
+	ParallelSingletonDestroyer(DefaultSingletonBeanRegistry registry, String[] disposableBeanNames,
+			ExecutorService executor, long beanTimeoutMillis, long totalTimeoutMillis) {
+		this(registry, disposableBeanNames, 0, executor, beanTimeoutMillis, totalTimeoutMillis);
+	}
+
+	private ParallelSingletonDestroyer(DefaultSingletonBeanRegistry registry, String[] disposableBeanNames,
+			int parallelism, ExecutorService sharedExecutor, long beanTimeoutMillis, long totalTimeoutMillis) {
+		this.registry = registry;
+		this.disposableBeanNames = disposableBeanNames;
+		this.parallelism = parallelism;
+		this.sharedExecutor = sharedExecutor;
+		this.beanTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(beanTimeoutMillis);
+		this.totalTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(totalTimeoutMillis);
+	}
+
+	/**
+	 * 销毁所有的单例，直到全部完成或者超过总期限
+	 * 
+	 * @return 超过期限被强制跳过的bean 的名字
+	 */
+	public List<String> destroy() {
+		Map<String, Node> nodes = buildGraph();
+		long start = System.nanoTime();
+		int finished = 0;
+		LinkedList<Node> running = new LinkedList<Node>();
+
+		if (this.sharedExecutor != null) {
+			this.executor = this.sharedExecutor;
+		} else {
+			this.executor = Executors.newFixedThreadPool(this.parallelism, new DestructionThreadFactory());
+		}
+		try {
+			for (Node node : nodes.values()) {
+				if (node.pendingPredecessors.get() == 0) {
+					submit(node, running);
+				}
+			}
+			while (finished < nodes.size()) {
+				if (running.isEmpty()) {
+					// 没有正在销毁的bean，剩下的都在环里
+					finished += destroyCycleSequentially(nodes);
+					break;
+				}
+				long now = System.nanoTime();
+				if (this.totalTimeoutNanos > 0 && now - start >= this.totalTimeoutNanos) {
+					logger.warn("Destruction of singletons did not complete within "
+							+ TimeUnit.NANOSECONDS.toMillis(this.totalTimeoutNanos) + " ms - giving up on "
+							+ unfinishedBeanNames(nodes));
+					abandon(running);
+					break;
+				}
+				Node node = this.completed.poll(nextWaitNanos(running, start, now), TimeUnit.NANOSECONDS);
+				if (node != null) {
+					running.remove(node);
+					finished++;
+					release(node, running);
+				} else {
+					finished += settleOverrunBeans(running);
+				}
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			logger.warn("Interrupted while destroying singletons - giving up on " + unfinishedBeanNames(nodes));
+			abandon(running);
+		} finally {
+			if (this.executor != this.sharedExecutor) {
+				this.executor.shutdownNow();
+			}
+		}
+		if (!this.abandonedBeanNames.isEmpty()) {
+			logger.warn("Forced to continue shutdown past destroy methods that did not complete on beans "
+					+ this.abandonedBeanNames);
+		}
+		return this.abandonedBeanNames;
+	}
+
+	/**
+	 * 建立销毁的依赖图：节点A 指向节点B 表示A 必须在B 之前销毁
+	 * 
+	 * @return
+	 */
+	private Map<String, Node> buildGraph() {
+		Map<String, Node> nodes = new LinkedHashMap<String, Node>(this.disposableBeanNames.length * 2);
+		// 按注册顺序的反序建立节点，环里的bean 顺序销毁时就和原来一样
+		for (int i = this.disposableBeanNames.length - 1; i >= 0; i--) {
+			addNode(nodes, this.disposableBeanNames[i]);
+		}
+		LinkedList<Node> toVisit = new LinkedList<Node>(nodes.values());
+		while (!toVisit.isEmpty()) {
+			Node node = toVisit.removeFirst();
+			// 依赖这个bean 的bean 先销毁
+			for (String dependentBeanName : this.registry.getDependentBeans(node.beanName)) {
+				Node dependent = nodes.get(dependentBeanName);
+				if (dependent == null) {
+					dependent = addNode(nodes, dependentBeanName);
+					toVisit.add(dependent);
+				}
+				addEdge(dependent, node);
+			}
+			// 这个bean 包含的bean 后销毁
+			for (String containedBeanName : this.registry.getContainedBeans(node.beanName)) {
+				Node contained = nodes.get(containedBeanName);
+				if (contained == null) {
+					contained = addNode(nodes, containedBeanName);
+					toVisit.add(contained);
+				}
+				addEdge(node, contained);
+			}
+		}
+		return nodes;
+	}
+
+	private Node addNode(Map<String, Node> nodes, String beanName) {
+		Node node = nodes.get(beanName);
+		if (node == null) {
+			node = new Node(beanName);
+			nodes.put(beanName, node);
+		}
+		return node;
+	}
+
+	private void addEdge(Node from, Node to) {
+		if (from != to && !from.successors.contains(to)) {
+			from.successors.add(to);
+			to.pendingPredecessors.incrementAndGet();
+		}
+	}
+
+	/**
+	 * 把一个可以销毁的bean 交给线程池
+	 * 
+	 * @param node
+	 * @param running
+	 */
+	private void submit(final Node node, List<Node> running) {
+		node.submitted = true;
+		node.startTime = System.nanoTime();
+		running.add(node);
+		Runnable destruction = new Runnable() {
+			public void run() {
+				// 回调里再销毁别的bean 时直接在这个线程执行，不再提交回线程池
+				boolean entered = registry.enterDestructionThread();
+				try {
+					registry.destroySingletonInstance(node.beanName);
+				} finally {
+					registry.exitDestructionThread(entered);
+					if (node.settled.compareAndSet(false, true)) {
+						completed.add(node);
+					} else {
+						logger.info("Destruction of bean '" + node.beanName + "' completed after "
+								+ TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - node.startTime) + " ms");
+					}
+				}
+			}
+		};
+		try {
+			node.future = this.executor.submit(destruction);
+		} catch (RejectedExecutionException ex) {
+			// 调用方的线程池已经关闭或者满了，在当前线程里销毁
+			destruction.run();
+		}
+	}
+
+	/**
+	 * 一个bean 销毁完之后，放出排在它后面的bean
+	 * 
+	 * @param node
+	 * @param running
+	 */
+	private void release(Node node, List<Node> running) {
+		for (Node successor : node.successors) {
+			if (successor.pendingPredecessors.decrementAndGet() == 0) {
+				submit(successor, running);
+			}
+		}
+	}
+
+	/**
+	 * 计算下一次最多等待多久：最早的一个bean 期限 和 总期限 中较早的那一个
+	 * 
+	 * @param running
+	 * @param start
+	 * @param now
+	 * @return
+	 */
+	private long nextWaitNanos(List<Node> running, long start, long now) {
+		long wait = Long.MAX_VALUE;
+		if (this.beanTimeoutNanos > 0) {
+			for (Node node : running) {
+				wait = Math.min(wait, node.startTime + this.beanTimeoutNanos - now);
+			}
+		}
+		if (this.totalTimeoutNanos > 0) {
+			wait = Math.min(wait, start + this.totalTimeoutNanos - now);
+		}
+		return Math.max(wait, 0);
+	}
+
+	/**
+	 * 把超过期限的bean 当作已经销毁完，打警告日志，然后放出排在它后面的bean
+	 * 
+	 * @param running
+	 * @return 超过期限的bean 的个数
+	 */
+	private int settleOverrunBeans(List<Node> running) {
+		if (this.beanTimeoutNanos <= 0) {
+			return 0;
+		}
+		long now = System.nanoTime();
+		List<Node> overrun = new ArrayList<Node>();
+		for (Node node : running) {
+			if (now - node.startTime >= this.beanTimeoutNanos && node.settled.compareAndSet(false, true)) {
+				overrun.add(node);
+			}
+		}
+		for (Node node : overrun) {
+			logger.warn("Destroy method on bean with name '" + node.beanName + "' did not complete within "
+					+ TimeUnit.NANOSECONDS.toMillis(this.beanTimeoutNanos) + " ms - continuing shutdown");
+			cancel(node);
+			running.remove(node);
+			release(node, running);
+		}
+		return overrun.size();
+	}
+
+	/**
+	 * 不再等待还在销毁的bean
+	 * 
+	 * @param running
+	 */
+	private void abandon(List<Node> running) {
+		for (Node node : running) {
+			if (node.settled.compareAndSet(false, true)) {
+				cancel(node);
+			}
+		}
+		running.clear();
+	}
+
+	/**
+	 * 取消一个超过期限的bean 的销毁：中断执行它的线程，记下它的名字
+	 * 
+	 * @param node
+	 */
+	private void cancel(Node node) {
+		Future<?> future = node.future;
+		if (future != null) {
+			future.cancel(true);
+		}
+		this.abandonedBeanNames.add(node.beanName);
+	}
+
+	/**
+	 * 剩下的bean 互相依赖成环，退回到递归的 destroySingleton
+	 * 
+	 * @param nodes
+	 * @return 销毁的bean 的个数
+	 */
+	private int destroyCycleSequentially(Map<String, Node> nodes) {
+		int count = 0;
+		for (Node node : nodes.values()) {
+			if (!node.submitted) {
+				node.settled.set(true);
+				this.registry.destroySingleton(node.beanName);
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private List<String> unfinishedBeanNames(Map<String, Node> nodes) {
+		List<String> beanNames = new ArrayList<String>();
+		for (Node node : nodes.values()) {
+			if (!node.settled.get()) {
+				beanNames.add(node.beanName);
+			}
+		}
+		return beanNames;
+	}
+
+	/**
+	 * 销毁依赖图里的一个bean
+	 */
+	private static class Node {
+
+		final String beanName;
+
+		/** 还没有销毁完的、必须在它之前销毁的bean 的个数 */
+		final AtomicInteger pendingPredecessors = new AtomicInteger();
+
+		/** 必须在它之后销毁的bean */
+		final List<Node> successors = new ArrayList<Node>(4);
+
+		/** 是否已经销毁完(或者超时) */
+		final AtomicBoolean settled = new AtomicBoolean();
+
+		/** 是否已经交给线程池 */
+		boolean submitted;
+
+		/** 开始销毁的时间 */
+		volatile long startTime;
+
+		/** 交给线程池之后的Future */
+		volatile Future<?> future;
+
+		Node(String beanName) {
+			this.beanName = beanName;
+		}
+	}
+
+	/**
+	 * 销毁用的守护线程
+	 */
+	private static class DestructionThreadFactory implements ThreadFactory {
+
+		private final AtomicInteger threadCount = new AtomicInteger();
+
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "singleton-destruction-" + this.threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+
+}
@@ -0,0 +1,211 @@
+package org.springframework.beans.factory.support;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.BeansException;
+
+/**
+ * 按依赖关系图并行的预实例化单例<br>
+ * 先根据 depends-on、构造参数和属性里的bean 引用、factory-bean 以及已经注册的依赖关系建一张有向无环图，
+ * 然后把没有未完成依赖的单例交给线程池同时创建，一个单例创建完之后再放出依赖它的单例。<br>
+ * 图只用来排定创建的顺序：getBean 本身还是会递归的创建依赖，图里漏掉的依赖只会让两个线程在同一个bean 的创建锁上等待。
+ * 图里有环的时候退回到顺序创建
+ * 
+ * @author yanbin
+ * 
+ */
+class ParallelSingletonPreInstantiator {
+
+	private static final Log logger = LogFactory.getLog(ParallelSingletonPreInstantiator.class);
+
+	private final DefaultListableBeanFactory beanFactory;
+
+	private final List<String> beanNames;
+
+	private final int parallelism;
+
+	/** 第一个创建失败的异常，后续的单例不再创建 */
+	private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+	/** 创建失败的bean name */
+	private volatile String failedBeanName;
+
+	private ExecutorService executor;
+
+	private CountDownLatch remaining;
+
+	ParallelSingletonPreInstantiator(DefaultListableBeanFactory beanFactory, List<String> beanNames, int parallelism) {
+		this.beanFactory = beanFactory;
+		this.beanNames = beanNames;
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * 预实例化所有的单例，直到全部完成或者有一个失败
+	 * 
+	 * @throws BeansException
+	 */
+	public void preInstantiate() throws BeansException {
+		Map<String, Node> nodes = buildGraph();
+		if (hasCycle(nodes)) {
+			if (logger.isInfoEnabled()) {
+				logger.info("Dependency cycle detected between singletons to pre-instantiate - "
+						+ "falling back to sequential creation");
+			}
+			this.beanFactory.preInstantiateSingletonsSequentially(this.beanNames);
+			return;
+		}
+
+		this.remaining = new CountDownLatch(nodes.size());
+		this.executor = Executors.newFixedThreadPool(this.parallelism, new PreInstantiationThreadFactory());
+		try {
+			for (Node node : nodes.values()) {
+				if (node.pendingDependencies.get() == 0) {
+					submit(node);
+				}
+			}
+			this.remaining.await();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new BeanCreationException("Interrupted while pre-instantiating singletons", ex);
+		} finally {
+			this.executor.shutdownNow();
+		}
+
+		Throwable ex = this.failure.get();
+		if (ex instanceof BeansException) {
+			throw (BeansException) ex;
+		} else if (ex instanceof Error) {
+			throw (Error) ex;
+		} else if (ex != null) {
+			throw new BeanCreationException(this.failedBeanName, "Pre-instantiation of singleton failed", ex);
+		}
+	}
+
+	/**
+	 * 建立依赖关系图：只保留要预实例化的单例之间的边
+	 * 
+	 * @return
+	 */
+	private Map<String, Node> buildGraph() {
+		Map<String, Node> nodes = new LinkedHashMap<String, Node>(this.beanNames.size() * 2);
+		for (String beanName : this.beanNames) {
+			nodes.put(beanName, new Node(beanName));
+		}
+		for (Node node : nodes.values()) {
+			for (String dependency : this.beanFactory.getPreInstantiationDependencies(node.beanName)) {
+				Node dependencyNode = nodes.get(dependency);
+				if (dependencyNode != null) {
+					node.pendingDependencies.incrementAndGet();
+					dependencyNode.dependents.add(node);
+				}
+			}
+		}
+		return nodes;
+	}
+
+	/**
+	 * 用拓扑排序判断图里是否有环
+	 * 
+	 * @param nodes
+	 * @return
+	 */
+	private boolean hasCycle(Map<String, Node> nodes) {
+		Map<Node, Integer> inDegrees = new LinkedHashMap<Node, Integer>(nodes.size() * 2);
+		LinkedList<Node> ready = new LinkedList<Node>();
+		for (Node node : nodes.values()) {
+			int inDegree = node.pendingDependencies.get();
+			inDegrees.put(node, inDegree);
+			if (inDegree == 0) {
+				ready.add(node);
+			}
+		}
+		int visited = 0;
+		while (!ready.isEmpty()) {
+			Node node = ready.removeFirst();
+			visited++;
+			for (Node dependent : node.dependents) {
+				int inDegree = inDegrees.get(dependent) - 1;
+				inDegrees.put(dependent, inDegree);
+				if (inDegree == 0) {
+					ready.add(dependent);
+				}
+			}
+		}
+		return (visited < nodes.size());
+	}
+
+	/**
+	 * 把一个依赖都已经完成的单例交给线程池创建
+	 * 
+	 * @param node
+	 */
+	private void submit(final Node node) {
+		this.executor.execute(new Runnable() {
+			public void run() {
+				try {
+					if (failure.get() == null) {
+						beanFactory.preInstantiateSingleton(node.beanName);
+					}
+				} catch (Throwable ex) {
+					if (failure.compareAndSet(null, ex)) {
+						failedBeanName = node.beanName;
+					}
+				} finally {
+					// 放出依赖这个单例的单例
+					for (Node dependent : node.dependents) {
+						if (dependent.pendingDependencies.decrementAndGet() == 0) {
+							submit(dependent);
+						}
+					}
+					remaining.countDown();
+				}
+			}
+		});
+	}
+
+	/**
+	 * 依赖关系图里的一个单例
+	 */
+	private static class Node {
+
+		final String beanName;
+
+		/** 还没有创建完的依赖的个数 */
+		final AtomicInteger pendingDependencies = new AtomicInteger();
+
+		/** 依赖这个单例的单例 */
+		final List<Node> dependents = new ArrayList<Node>(4);
+
+		Node(String beanName) {
+			this.beanName = beanName;
+		}
+	}
+
+	/**
+	 * 预实例化用的守护线程
+	 */
+	private static class PreInstantiationThreadFactory implements ThreadFactory {
+
+		private final AtomicInteger threadCount = new AtomicInteger();
+
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "singleton-pre-instantiation-" + this.threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+
+}
@@ -0,0 +1,135 @@
+package org.springframework.beans.factory.support;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 原型bean 的创建配方<br>
+ * 原型bean 每次创建都要重复同样的准备：解析bean class、准备方法的override、按类型挑出后置处理器、确定构造方式、
+ * 找出需要自动装配的属性、解析和转换属性值、查找init 方法。第一次创建时把这些结果记下来，之后的创建直接使用。<br>
+ * 属性值只记下不依赖别的bean 的：解析出来就是原值 或者 静态的字符串值，转换结果每次都一样；引用别的bean 的值每次创建都要重新解析。<br>
+ * 配方绑定在merged bean definition 实例 和 后置处理器列表的版本上，bean definition 被重新merge 或者 加入新的后置处理器后作废。
+ * 构造方式 和 自动装配的属性要在第一次创建的过程中才知道，第一次用到时补上，只会从没有变成有
+ * 
+ * @author yanbin
+ * 
+ */
+final class PrototypeCreationRecipe {
+
+	private static final InstantiationAwareBeanPostProcessor[] NO_PROCESSORS = new InstantiationAwareBeanPostProcessor[0];
+
+	private static final BeanPostProcessor[] NO_BEAN_POST_PROCESSORS = new BeanPostProcessor[0];
+
+	/** 配方对应的merged bean definition */
+	private final RootBeanDefinition mbd;
+
+	/** 建立配方时后置处理器列表的版本 */
+	private final int beanPostProcessorGeneration;
+
+	/** 挑出来的 InstantiationAwareBeanPostProcessor */
+	private final InstantiationAwareBeanPostProcessor[] instantiationAwareBeanPostProcessors;
+
+	/** 初始化前后调用的后置处理器，按注册顺序 */
+	private final BeanPostProcessor[] beanPostProcessors;
+
+	/** 解析好的bean class */
+	private final Class<?> beanClass;
+
+	/** 解析好的自定义init 方法，没有时为null */
+	private final Method initMethod;
+
+	/** 构造方式：null 表示还没有确定，TRUE 表示自动装配构造器，FALSE 表示默认构造器 */
+	private volatile Boolean constructorAutowiring;
+
+	/** 需要自动装配的属性，还没有确定时为null */
+	private volatile String[] autowireCandidates;
+
+	/** 属性名 --> 转换好的属性值，只有不依赖别的bean 的属性值 */
+	private final ConcurrentMap<String, PropertyValue> convertedPropertyValues = new ConcurrentHashMap<String, PropertyValue>(
+			8);
+
+	PrototypeCreationRecipe(RootBeanDefinition mbd, int beanPostProcessorGeneration,
+			InstantiationAwareBeanPostProcessor[] instantiationAwareBeanPostProcessors,
+			BeanPostProcessor[] beanPostProcessors, Class<?> beanClass, Method initMethod) {
+		this.mbd = mbd;
+		this.beanPostProcessorGeneration = beanPostProcessorGeneration;
+		this.instantiationAwareBeanPostProcessors = (instantiationAwareBeanPostProcessors != null ? instantiationAwareBeanPostProcessors
+				: NO_PROCESSORS);
+		this.beanPostProcessors = (beanPostProcessors != null ? beanPostProcessors : NO_BEAN_POST_PROCESSORS);
+		this.beanClass = beanClass;
+		this.initMethod = initMethod;
+	}
+
+	/**
+	 * 配方是否还对应这个bean definition 和 当前的后置处理器列表
+	 * 
+	 * @param mbd
+	 * @param beanPostProcessorGeneration
+	 * @return
+	 */
+	public boolean isValidFor(AbstractBeanDefinition mbd, int beanPostProcessorGeneration) {
+		return (this.mbd == mbd && this.beanPostProcessorGeneration == beanPostProcessorGeneration);
+	}
+
+	public InstantiationAwareBeanPostProcessor[] getInstantiationAwareBeanPostProcessors() {
+		return this.instantiationAwareBeanPostProcessors;
+	}
+
+	public BeanPostProcessor[] getBeanPostProcessors() {
+		return this.beanPostProcessors;
+	}
+
+	public Class<?> getBeanClass() {
+		return this.beanClass;
+	}
+
+	/**
+	 * 返回可以在这个实例上调用的init 方法，实例不是配方里的bean class(被后置处理器换成了别的对象) 时返回null
+	 * 
+	 * @param bean
+	 * @return
+	 */
+	public Method getInitMethod(Object bean) {
+		Method method = this.initMethod;
+		return (method != null && method.getDeclaringClass().isInstance(bean) ? method : null);
+	}
+
+	public Boolean getConstructorAutowiring() {
+		return this.constructorAutowiring;
+	}
+
+	public void setConstructorAutowiring(boolean constructorAutowiring) {
+		this.constructorAutowiring = constructorAutowiring;
+	}
+
+	public String[] getAutowireCandidates() {
+		return this.autowireCandidates;
+	}
+
+	public void setAutowireCandidates(String[] autowireCandidates) {
+		this.autowireCandidates = autowireCandidates;
+	}
+
+	/**
+	 * 返回这个属性转换好的值，属性的原值和记下来的不是同一个对象时返回null
+	 * 
+	 * @param pv
+	 *            还没有转换的属性值
+	 * @return
+	 */
+	public PropertyValue getConvertedPropertyValue(PropertyValue pv) {
+		PropertyValue converted = this.convertedPropertyValues.get(pv.getName());
+		return (converted != null && converted.getValue() == pv.getValue() ? converted : null);
+	}
+
+	/**
+	 * 记下一个转换好的、不依赖别的bean 的属性值
+	 * 
+	 * @param pv
+	 */
+	public void addConvertedPropertyValue(PropertyValue pv) {
+		this.convertedPropertyValues.put(pv.getName(), pv);
+	}
+
+}
@@ -0,0 +1,66 @@
+package org.springframework.beans.factory.support;
+
+/**
+ * 一个线程上正在创建的原型bean 的bean name 栈<br>
+ * 每个线程一个，最外层的原型bean 开始创建时放到线程上，全部创建完、栈空了就移除；嵌套创建时不需要新建集合。
+ * 嵌套的层数一般很少，查找直接从栈顶往下比较
+ * 
+ * @author yanbin
+ * 
+ */
+final class PrototypeCreationStack {
+
+	private String[] beanNames = new String[8];
+
+	private int size = 0;
+
+	/**
+	 * 压入开始创建的bean name
+	 * 
+	 * @param beanName
+	 */
+	public void push(String beanName) {
+		if (this.size == this.beanNames.length) {
+			String[] newBeanNames = new String[this.size << 1];
+			System.arraycopy(this.beanNames, 0, newBeanNames, 0, this.size);
+			this.beanNames = newBeanNames;
+		}
+		this.beanNames[this.size++] = beanName;
+	}
+
+	/**
+	 * 移除创建完成的bean name，正常情况下就是栈顶
+	 * 
+	 * @param beanName
+	 */
+	public void remove(String beanName) {
+		int index = indexOf(beanName);
+		if (index < 0) {
+			return;
+		}
+		int moved = this.size - index - 1;
+		if (moved > 0) {
+			System.arraycopy(this.beanNames, index + 1, this.beanNames, index, moved);
+		}
+		this.beanNames[--this.size] = null;
+	}
+
+	public boolean contains(String beanName) {
+		return (indexOf(beanName) >= 0);
+	}
+
+	public boolean isEmpty() {
+		return (this.size == 0);
+	}
+
+	private int indexOf(String beanName) {
+		for (int i = this.size - 1; i >= 0; i--) {
+			String candidate = this.beanNames[i];
+			if (candidate == beanName || candidate.equals(beanName)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+}